@@ -1,9 +1,15 @@
 package custom.sorts;
 
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 
 
 public class CustomSort {
@@ -18,25 +24,45 @@ public class CustomSort {
     // This shared pool facilitates parallel execution of sorting tasks, allowing for concurrent processing
     // of different segments of the array. The aim is to leverage multi-core architectures effectively by dividing
     // the sorting work among multiple threads, thereby reducing the total computation time.
-    private static final ForkJoinPool POOL = new ForkJoinPool(CORES);
+    static final ForkJoinPool POOL = new ForkJoinPool(CORES);
 
     // INSERTION_SORT_THRESHOLD specifies the maximum array size for which insertion sort is preferred over quicksort.
     // Insertion sort is known to perform well for small datasets due to its low overhead and simplicity.
     // This threshold helps in switching to insertion sort for small subarrays, optimizing the overall performance
     // of the sorting algorithm by reducing the time complexity in cases where quicksort's partitioning would be less efficient.
-    private static final int INSERTION_SORT_THRESHOLD = 100;
+    static final int INSERTION_SORT_THRESHOLD = 100;
 
     // MIN_PARALLEL_THRESHOLD defines the minimum size of the array for which the sorting task will be executed in parallel.
     // If the array size exceeds this threshold, the sorting task is split into smaller sub-tasks, which are then
     // executed concurrently using the ForkJoin framework. This threshold ensures that overhead from task management
     // and thread coordination is justified by the performance gains from parallel execution, particularly for large datasets.
-    private static final int MIN_PARALLEL_THRESHOLD = 4096;
+    static final int MIN_PARALLEL_THRESHOLD = 4096;
 
     // MIN_SEQUENTIAL_SORTED_THRESHOLD sets the maximum size for which the algorithm checks if a segment of the array
     // is sorted sequentially rather than parallel. For segments smaller than or equal to this size, a direct sequential
     // check is performed to determine if the segment is already sorted. This avoids the overhead of splitting and
     // managing parallel tasks for small datasets, where a sequential approach is more efficient.
-    private static final int MIN_SEQUENTIAL_SORTED_THRESHOLD = 1024;
+    static final int MIN_SEQUENTIAL_SORTED_THRESHOLD = 1024;
+
+    // PRESORTED_CHECK_THRESHOLD is the segment size above which sortArray first samples a few groups of elements to decide
+    // whether a full sortedness check is worth it. Segments of this size or smaller are checked directly, since a full
+    // sequential pass over them costs about as much as the sampling.
+    static final int PRESORTED_CHECK_THRESHOLD = 100;
+
+    // PARALLEL_SORTED_CHECK_THRESHOLD is the segment size above which a segment that looks presorted is verified with the
+    // parallel CheckSortedTask instead of a sequential pass.
+    static final int PARALLEL_SORTED_CHECK_THRESHOLD = 10000;
+
+    // The constants above are the defaults. The thresholds actually in use live in this SortTuning, which is loaded at
+    // class init from the profile named by the custom.sorts.tuningProfile system property (see SortTuning.main for the
+    // calibration mode that writes one), and can be replaced at runtime through setTuning. Each sort reads it once.
+    private static volatile SortTuning tuning = SortTuning.loadConfigured();
+
+    // eventThreshold is the minimum array size for which a JDK Flight Recorder SortEvent is emitted. Sorts at or above
+    // this size record their length, strategy, wall time, parallelism and pool steal count, so that a recording shows
+    // which sorts cause latency spikes. Sorts below it only pay for this single comparison. The initial value can be
+    // set with the custom.sorts.eventThreshold system property and changed at runtime through setEventThreshold.
+    private static volatile int eventThreshold = Integer.getInteger("custom.sorts.eventThreshold", 100_000);
 
 
 
@@ -46,30 +72,39 @@ public class CustomSort {
         private final double[] array; // The array segment to be checked for sorted order.
         private final int left; // The starting index of the segment.
         private final int right; // The ending index of the segment.
+        private final SortTuning tuning; // The thresholds of the sort this check belongs to.
+        private final SortHandle cancellation; // The handle of a cancellable sort, or null when the sort cannot be stopped.
 
         // Constructor initializes the task with the array segment defined by left and right indices.
-        CheckSortedTask(double[] array, int left, int right) {
+        CheckSortedTask(double[] array, int left, int right, SortTuning tuning, SortHandle cancellation) {
             this.array = array;
             this.left = left;
             this.right = right;
+            this.tuning = tuning;
+            this.cancellation = cancellation;
         }
 
         // Executes the main computation logic for this task.
         @Override
         protected Boolean[] compute() {
+            // A stopped sort reports the segment as unsorted, which leads straight to the equally stopped sort tasks.
+            if (cancellation != null && cancellation.shouldStop()) {
+                return new Boolean[]{false, false};
+            }
             // Determine the length of the array segment to decide on the computation strategy.
             int length = right - left + 1;
 
             // If the segment is small enough (under a predefined threshold), perform a sequential check.
             // This decision avoids the overhead of further task splitting for small segments.
-            if (length <= MIN_SEQUENTIAL_SORTED_THRESHOLD) {
+            if (length <= tuning.minSequentialSortedThreshold) {
                 return checkSortedSequentially(array, left, right);
             } else {
                 // For larger segments, divide the task into two subtasks for parallel execution.
                 // This is achieved by calculating a midpoint and creating two new CheckSortedTask instances accordingly.
-                int mid = left + length / 2;
-                CheckSortedTask leftTask = new CheckSortedTask(array, left, mid);
-                CheckSortedTask rightTask = new CheckSortedTask(array, mid + 1, right);
+                // The left half ends at mid, so rounding down leaves both halves strictly smaller, even for two elements.
+                int mid = left + (length - 1) / 2;
+                CheckSortedTask leftTask = new CheckSortedTask(array, left, mid, tuning, cancellation);
+                CheckSortedTask rightTask = new CheckSortedTask(array, mid + 1, right, tuning, cancellation);
 
                 leftTask.fork(); // Asynchronously executes the left subtask in a separate thread.
                 Boolean[] rightResult = rightTask.compute(); // Executes the right subtask in the current thread.
@@ -77,7 +112,9 @@ public class CustomSort {
 
                 // After both subtasks complete, their results are merged.
                 // This step checks whether each segment is sorted or reverse-sorted, combining the findings.
-                return mergeSortedResults(leftResult, rightResult);
+                // The pair straddling the split point belongs to neither subtask, so it is checked here.
+                Boolean[] boundaryResult = checkSortedSequentially(array, mid, mid + 1);
+                return mergeSortedResults(mergeSortedResults(leftResult, boundaryResult), rightResult);
             }
         }
 
@@ -88,10 +125,10 @@ public class CustomSort {
             boolean isReverseSorted = true;
             // Iterate through the segment to check order. The loop breaks early if both sorted and reverse-sorted conditions are false.
             for (int i = left; i < right; i++) {
-                if (array[i] > array[i + 1]) {
+                if (outOfOrder(array[i], array[i + 1])) {
                     isSorted = false;
                 }
-                if (array[i] < array[i + 1]) {
+                if (outOfOrder(array[i + 1], array[i])) {
                     isReverseSorted = false;
                 }
                 if (!isSorted && !isReverseSorted) {
@@ -137,25 +174,57 @@ public class CustomSort {
         // preventing stack overflow and controlling the overhead of recursion.
         private final int depthLimit;
 
+        // The insertion sort cut-off of the sort this task belongs to, read once from the tuning when the sort starts.
+        private final int insertionSortThreshold;
+
+        // Segments up to this size are sorted on the current thread without forking, so that a sort below the parallel
+        // cut-off never leaves the caller thread. Read from the tuning's minParallelThreshold when the sort starts.
+        private final int grain;
+
+        // The flight recorder event of the sort this task belongs to, or null when the sort is not traced.
+        // Tasks only touch it to flag that the heap sort fallback was taken.
+        private final SortEvent event;
+
+        // The handle of a cancellable sort, or null when the sort cannot be stopped. Checked before any work is done,
+        // so that once a stop is requested no further partitioning or forking happens.
+        private final SortHandle cancellation;
+
         SortTask(double[] array, int left, int right, int depthLimit) {
+            this(array, left, right, depthLimit, INSERTION_SORT_THRESHOLD, MIN_PARALLEL_THRESHOLD, null, null);
+        }
+
+        SortTask(double[] array, int left, int right, int depthLimit, int insertionSortThreshold, int grain,
+                 SortEvent event, SortHandle cancellation) {
             this.array = array;
             this.left = left;
             this.right = right;
             this.depthLimit = depthLimit;
+            this.insertionSortThreshold = insertionSortThreshold;
+            this.grain = grain;
+            this.event = event;
+            this.cancellation = cancellation;
         }
 
         @Override
         protected void compute() {
+            // A stopped sort leaves the segment as it is. Partitions only swap elements, so it is still a permutation.
+            if (cancellation != null && cancellation.shouldStop()) {
+                return;
+            }
             // Determine the current segment's size to decide on the sorting strategy.
             int size = right - left + 1;
 
             // If the segment size is small (below the predefined threshold), insertion sort is used for its efficiency on small arrays.
-            if (size <= INSERTION_SORT_THRESHOLD) {
+            if (size <= insertionSortThreshold) {
                 insertionSort(array, left, right);
             }
             // If the recursion depth limit is reached, switch to heap sort to avoid stack overflow and to guarantee O(n log n) performance.
             else if (depthLimit <= 0) {
-                heapSort(array, left, right);
+                if (event != null) {
+                    event.heapFallback = true;
+                }
+                // heapSort takes an exclusive upper bound, while right is the index of the last element.
+                heapSort(array, left, right + 1);
             }
             // For larger segments and when depth limit hasn't been reached, proceed with the quicksort algorithm.
             else {
@@ -163,10 +232,16 @@ public class CustomSort {
                 int pivot = choosePivotByGoldenRation(array, left, right);
                 // Partition the array around the chosen pivot, so that elements less than the pivot are on its left, and elements greater are on its right.
                 pivot = partition(array, left, right, pivot);
-                // Recursively apply the same sorting logic to the two partitions created by the pivot. This step is performed in parallel to leverage multi-core processors.
+                // Recursively apply the same sorting logic to the two partitions created by the pivot. Segments above the grain are sorted in parallel to leverage multi-core processors.
                 // The depth limit is decremented with each recursive call to ensure that the algorithm does not recurse indefinitely.
-                invokeAll(new SortTask(array, left, pivot - 1, depthLimit - 1),
-                        new SortTask(array, pivot + 1, right, depthLimit - 1));
+                SortTask leftTask = new SortTask(array, left, pivot - 1, depthLimit - 1, insertionSortThreshold, grain, event, cancellation);
+                SortTask rightTask = new SortTask(array, pivot + 1, right, depthLimit - 1, insertionSortThreshold, grain, event, cancellation);
+                if (size > grain) {
+                    invokeAll(leftTask, rightTask);
+                } else {
+                    leftTask.compute();
+                    rightTask.compute();
+                }
             }
         }
 
@@ -310,8 +385,172 @@ public class CustomSort {
         }
     }
 
+
+
+    /**
+     * A SortTask counterpart that orders the segment with a DoubleComparator instead of the '<' operator.
+     * It follows the same strategy as SortTask: insertion sort for small segments, golden ratio pivot quicksort in parallel,
+     * and heap sort once the depth limit is reached. The comparator is held in a final field and called directly at every
+     * comparison site, so a program that sorts with one comparator gives the JIT monomorphic call sites it can inline.
+     * Because the comparator defines the whole order, NaNs and negative zeros need no special handling on this path.
+     */
+    static class ComparatorSortTask extends RecursiveAction {
+        private final double[] array; // The array to be sorted.
+        private final int left; // The starting index of the segment.
+        private final int right; // The ending index of the segment, inclusive.
+        private final int depthLimit; // Remaining recursion depth before switching to heap sort.
+        private final int insertionSortThreshold; // The insertion sort cut-off of the sort this task belongs to.
+        private final int grain; // Segments up to this size are sorted without forking, as in SortTask.
+        private final DoubleComparator comparator; // The order to sort in.
+        private final SortEvent event; // The flight recorder event of the sort, or null when the sort is not traced.
+
+        ComparatorSortTask(double[] array, int left, int right, int depthLimit, int insertionSortThreshold, int grain,
+                           DoubleComparator comparator, SortEvent event) {
+            this.array = array;
+            this.left = left;
+            this.right = right;
+            this.depthLimit = depthLimit;
+            this.insertionSortThreshold = insertionSortThreshold;
+            this.grain = grain;
+            this.comparator = comparator;
+            this.event = event;
+        }
+
+        @Override
+        protected void compute() {
+            int size = right - left + 1;
+
+            if (size <= insertionSortThreshold) {
+                insertionSort(array, left, right);
+            } else if (depthLimit <= 0) {
+                if (event != null) {
+                    event.heapFallback = true;
+                }
+                heapSort(array, left, right + 1);
+            } else {
+                int pivot = choosePivotByGoldenRation(array, left, right);
+                pivot = partition(array, left, right, pivot);
+                ComparatorSortTask leftTask = new ComparatorSortTask(array, left, pivot - 1, depthLimit - 1,
+                        insertionSortThreshold, grain, comparator, event);
+                ComparatorSortTask rightTask = new ComparatorSortTask(array, pivot + 1, right, depthLimit - 1,
+                        insertionSortThreshold, grain, comparator, event);
+                if (size > grain) {
+                    invokeAll(leftTask, rightTask);
+                } else {
+                    leftTask.compute();
+                    rightTask.compute();
+                }
+            }
+        }
+
+        // Heap sort of a[low, high), high being exclusive, building a max heap under the comparator.
+        private void heapSort(double[] a, int low, int high) {
+            for (int k = (low + high) >>> 1; k > low; ) {
+                pushDown(a, --k, a[k], low, high);
+            }
+            while (--high > low) {
+                double max = a[low];
+                pushDown(a, low, a[high], low, high);
+                a[high] = max;
+            }
+        }
+
+        // Pushes the value down from index p until the heap property holds under the comparator.
+        private void pushDown(double[] a, int p, double value, int low, int high) {
+            DoubleComparator cmp = comparator;
+            for (int k ;; a[p] = a[p = k]) {
+                k = (p << 1) - low + 2;
+
+                if (k > high) {
+                    break;
+                }
+                if (k == high || cmp.compare(a[k], a[k - 1]) < 0) {
+                    --k;
+                }
+                if (cmp.compare(a[k], value) <= 0) {
+                    break;
+                }
+            }
+            a[p] = value;
+        }
+
+        private void insertionSort(double[] array, int left, int right) {
+            DoubleComparator cmp = comparator;
+            for (int i = left + 1; i <= right; i++) {
+                double key = array[i];
+                int j = i;
+                while (j > left && cmp.compare(array[j - 1], key) > 0) {
+                    array[j] = array[j - 1];
+                    j--;
+                }
+                array[j] = key;
+            }
+        }
+
+        // Same five element golden ratio sampling as SortTask.choosePivotByGoldenRation, ordered by the comparator.
+        private int choosePivotByGoldenRation(double[] a, int left, int right) {
+            DoubleComparator cmp = comparator;
+            int size = right - left + 1;
+            int step = (size >> 3) * 3 + 3;
+
+            int e1 = left + step;
+            int e5 = right - step;
+            int e3 = (e1 + e5) >>> 1;
+            int e2 = (e1 + e3) >>> 1;
+            int e4 = (e3 + e5) >>> 1;
+            double a3 = a[e3];
+
+            if (cmp.compare(a[e5], a[e2]) < 0) { double t = a[e5]; a[e5] = a[e2]; a[e2] = t; }
+            if (cmp.compare(a[e4], a[e1]) < 0) { double t = a[e4]; a[e4] = a[e1]; a[e1] = t; }
+            if (cmp.compare(a[e5], a[e4]) < 0) { double t = a[e5]; a[e5] = a[e4]; a[e4] = t; }
+            if (cmp.compare(a[e2], a[e1]) < 0) { double t = a[e2]; a[e2] = a[e1]; a[e1] = t; }
+            if (cmp.compare(a[e4], a[e2]) < 0) { double t = a[e4]; a[e4] = a[e2]; a[e2] = t; }
+
+            if (cmp.compare(a3, a[e2]) < 0) {
+                if (cmp.compare(a3, a[e1]) < 0) {
+                    a[e3] = a[e2]; a[e2] = a[e1]; a[e1] = a3;
+                } else {
+                    a[e3] = a[e2]; a[e2] = a3;
+                }
+            } else if (cmp.compare(a3, a[e4]) > 0) {
+                if (cmp.compare(a3, a[e5]) > 0) {
+                    a[e3] = a[e4]; a[e4] = a[e5]; a[e5] = a3;
+                } else {
+                    a[e3] = a[e4]; a[e4] = a3;
+                }
+            }
+
+            return e3;
+        }
+
+        private int partition(double[] array, int left, int right, int pivotIndex) {
+            DoubleComparator cmp = comparator;
+            double pivotValue = array[pivotIndex];
+            swap(array, pivotIndex, right);
+
+            int storeIndex = left;
+            for (int i = left; i < right; i++) {
+                if (cmp.compare(array[i], pivotValue) < 0) {
+                    swap(array, i, storeIndex);
+                    storeIndex++;
+                }
+            }
+            swap(array, storeIndex, right);
+
+            return storeIndex;
+        }
+
+        private void swap(double[] array, int i, int j) {
+            double temp = array[i];
+            array[i] = array[j];
+            array[j] = temp;
+        }
+    }
+
     // Searches for the index of the first occurrence of zero in a sorted array using binary search.
     private static int findFirstZeroIndex(double[] array, int left, int right) {
+        // Index of the leftmost zero found so far, -1 while none has been found.
+        int firstZeroIndex = -1;
         // Continues searching as long as 'left' is less than or equal to 'right'
         while (left <= right) {
             // Calculates the middle index of the current segment.
@@ -328,16 +567,18 @@ public class CustomSort {
             else if (array[middle] > 0) {
                 right = middle - 1;
             }
-            // If the element at the middle is exactly zero, its index is returned as the first occurrence.
+            // If the element at the middle is exactly zero, it is remembered and the search continues in the left half,
+            // since an earlier zero may still precede it.
             else {
-                return middle;
+                firstZeroIndex = middle;
+                right = middle - 1;
             }
         }
-        // If zero is not found in the array, return -1.
-        return -1;
+        // Return the first occurrence, or -1 if zero is not found in the array.
+        return firstZeroIndex;
     }
 
-    private static void reverse(double[] array, int left, int right) {
+    static void reverse(double[] array, int left, int right) {
         while (left < right) {
             double temp = array[left];
             array[left++] = array[right];
@@ -365,17 +606,40 @@ public class CustomSort {
         // Check if the entire segment is overall sorted by ensuring the end of the first group
         // is less than or equal to the middle of the middle group, and the middle of the middle group
         // is less than or equal to the start of the last group.
-        boolean isOverallSorted = array[left + 4] <= array[midStart + 2] && array[midStart + 2] <= array[right - 4];
+        boolean isOverallSorted = !outOfOrder(array[left + 4], array[midStart + 2])
+                && !outOfOrder(array[midStart + 2], array[right - 4]);
         // Check if the entire segment is overall reverse sorted by ensuring the end of the first group
         // is greater than or equal to the middle of the middle group, and the middle of the middle group
         // is greater than or equal to the start of the last group.
-        boolean isOverallReverseSorted = array[left + 4] >= array[midStart + 2] && array[midStart + 2] >= array[right - 4];
+        boolean isOverallReverseSorted = !outOfOrder(array[midStart + 2], array[left + 4])
+                && !outOfOrder(array[right - 4], array[midStart + 2]);
 
         // The segment is considered potentially sorted or reverse sorted if either condition above holds true.
         return isOverallSorted || isOverallReverseSorted;
     }
 
 
+    // Returns true when a sorts after b in the Double.compare order. Besides a > b, this is the case for 0.0 followed by -0.0,
+    // which compare equal with '<', and for NaN followed by any other value, as NaN sorts above everything. Presorted data
+    // with NaNs, such as the output of sort or sortDescending, therefore still takes the sorted or reversed shortcut.
+    // Double.compare is only reached for equal values, keeping the common path to a single comparison.
+    static boolean outOfOrder(double a, double b) {
+        return a > b || (a == b && Double.compare(a, b) > 0) || (a != a && b == b);
+    }
+
+    // Maps a double to long bits whose signed order is the Double.compare order: negative values have their magnitude bits
+    // flipped so that they order downwards, -0.0 lands just below 0.0, and the canonical NaN lands above positive infinity.
+    // Sorting these bits with plain long comparisons therefore needs no special handling of NaN or negative zero.
+    static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    // Inverse of sortableBits. NaNs come back as the canonical NaN.
+    static double fromSortableBits(long bits) {
+        return Double.longBitsToDouble(bits ^ ((bits >> 63) & Long.MAX_VALUE));
+    }
+
     // Determines if a specified segment of an array is sorted in ascending order or descending order.
     private static boolean isGroupSortedOrReverseSorted(double[] array, int start, int end) {
         // Initially assume both sorted and reverseSorted to be true.
@@ -385,11 +649,11 @@ public class CustomSort {
         // Iterate through the segment of the array to check ordering between consecutive elements.
         for (int i = start + 1; i <= end; i++) {
             // If the current element is less than the previous one, it's not sorted in ascending order.
-            if (array[i] < array[i - 1]) {
+            if (outOfOrder(array[i - 1], array[i])) {
                 sorted = false;
             }
             // If the current element is greater than the previous one, it's not sorted in descending order.
-            if (array[i] > array[i - 1]) {
+            if (outOfOrder(array[i], array[i - 1])) {
                 reverseSorted = false;
             }
             // If the segment is neither sorted nor reverseSorted, return false immediately.
@@ -403,72 +667,161 @@ public class CustomSort {
     }
 
 
+    // Sorts an array segment, wrapping the sort in a flight recorder event when the segment reaches the event threshold.
+    static void sortArray(double[] array, int left, int right, SortTuning tuning) {
+        sortArray(array, left, right, tuning, (SortHandle) null);
+    }
+
+    // Sorts an array segment as above, stopping early once the given handle is cancelled or its deadline has passed.
+    static void sortArray(double[] array, int left, int right, SortTuning tuning, SortHandle cancellation) {
+        traced(right - left + 1, event -> sortArray(array, left, right, tuning, event, cancellation));
+    }
+
+    // A sort run under traced: given its flight recorder event, or null when the sort is not traced, it sorts and
+    // returns the name of the strategy it took.
+    @FunctionalInterface
+    private interface TracedSort {
+        String sort(SortEvent event);
+    }
+
+    // Runs a sort of the given size, wrapped in a flight recorder event when the size reaches the event threshold.
+    private static void traced(int size, TracedSort sort) {
+        // Untraced path: a single comparison, no event object is created.
+        if (size < eventThreshold) {
+            sort.sort(null);
+            return;
+        }
+        SortEvent event = SortEvent.begin(size, POOL);
+        String strategy = sort.sort(event);
+        if (event != null) {
+            event.end(POOL, strategy);
+        }
+    }
+
     // Define a method for sorting an array segment using different strategies based on segment size and order.
-    private static void sortArray(double[] array, int left, int right) {
+    // Returns the name of the strategy that was taken, as recorded by SortEvent.
+    private static String sortArray(double[] array, int left, int right, SortTuning tuning, SortEvent event,
+                                    SortHandle cancellation) {
         // Calculate the size of the array segment to be sorted.
         int size = right - left + 1;
 
-        // Check if the segment size is greater than 100 elements.
-        if (size > 100) {
+        int presorted = checkPresorted(array, left, right, tuning, event, cancellation);
+        if (cancellation != null && cancellation.isStopped()) {
+            return SortEvent.CANCELLED;
+        }
+        if (presorted == PRESORTED_ASCENDING) {
+            return SortEvent.SORTED; // If the array is already sorted, return immediately.
+        }
+        if (presorted == PRESORTED_DESCENDING) {
+            reverse(array, left, right); // If in reverse order, reverse the segment.
+            return SortEvent.REVERSED;
+        }
+
+        // For unsorted segments, or larger segments requiring sorting, delegate to a sorting method.
+        sortArray(array, left, right, size, tuning, event, cancellation);
+        return cancellation != null && cancellation.isStopped() ? SortEvent.CANCELLED : SortEvent.QUICKSORT;
+    }
+
+    // Results of checkPresorted.
+    static final int NOT_PRESORTED = 0;
+    static final int PRESORTED_ASCENDING = 1;
+    static final int PRESORTED_DESCENDING = 2;
+
+    // Determines whether a segment is already in ascending or in descending Double.compare order, without modifying it.
+    // A segment of equal values counts as ascending. Shared by every sort mode that offers the presorted shortcuts.
+    static int checkPresorted(double[] array, int left, int right, SortTuning tuning, SortEvent event) {
+        return checkPresorted(array, left, right, tuning, event, null);
+    }
+
+    // Like checkPresorted above, letting the parallel check stop early once the given handle asks it to.
+    private static int checkPresorted(double[] array, int left, int right, SortTuning tuning, SortEvent event,
+                                      SortHandle cancellation) {
+        int size = right - left + 1;
+
+        // Check if the segment size is greater than the presorted check threshold (100 elements by default).
+        if (size > tuning.presortedCheckThreshold) {
             // Check if the array segment might already be sorted or in reverse order.
-            if (isPotentialSortedOrReverse(array, left, right)) {
-                // For very large segments (over 10,000 elements), use a parallel task to check order.
-                if (size > 10000) {
-                    CheckSortedTask checkSortedTask = new CheckSortedTask(array, left, right);
-                    POOL.invoke(checkSortedTask); // Execute the task in a thread pool.
-                    Boolean[] result = checkSortedTask.join(); // Wait for the result.
-                    if (result[0]) return; // If the array is already sorted, return immediately.
-                    if (result[1]) {
-                        reverse(array, left, right); // If in reverse order, reverse the segment.
-                        return;
-                    }
-                } else {
-                    // For segments smaller than 10,000 elements, check order without parallelism.
-                    boolean sortedOrReverse = isGroupSortedOrReverseSorted(array, left, right);
-                    if (sortedOrReverse) return; // If sorted (or reverse sorted), no further action needed.
+            if (!isPotentialSortedOrReverse(array, left, right)) {
+                return NOT_PRESORTED;
+            }
+            // For very large segments (over 10,000 elements by default), use a parallel task to check order.
+            if (size > tuning.parallelSortedCheckThreshold) {
+                CheckSortedTask checkSortedTask = new CheckSortedTask(array, left, right, tuning, cancellation);
+                POOL.invoke(checkSortedTask); // Execute the task in a thread pool.
+                Boolean[] result = checkSortedTask.join(); // Wait for the result.
+                if (event != null) {
+                    event.parallelism = POOL.getParallelism();
                 }
+                return result[0] ? PRESORTED_ASCENDING : result[1] ? PRESORTED_DESCENDING : NOT_PRESORTED;
             }
-        } else {
-            // For segments of 100 elements or fewer, check if sorted or reverse sorted without parallelism.
-            boolean sortedOrReverse = isGroupSortedOrReverseSorted(array, left, right);
-            if (sortedOrReverse) return; // If sorted, return immediately.
         }
 
-        // For unsorted segments, or larger segments requiring sorting, delegate to a sorting method.
-        sortArray(array, left, right, size);
+        // For smaller segments, check order without parallelism.
+        if (!isGroupSortedOrReverseSorted(array, left, right)) {
+            return NOT_PRESORTED;
+        }
+        // A segment that is sorted one way or the other and ends lower than it starts is in descending order.
+        if (left < right && Double.compare(array[left], array[right]) > 0) {
+            return PRESORTED_DESCENDING;
+        }
+        return PRESORTED_ASCENDING;
     }
 
     // Overloaded sortArray method to handle actual sorting, including handling special cases like negative zeros.
     public static void sortArray(double[] array, int left, int right, int size) {
+        sortArray(array, left, right, size, tuning, null, null);
+    }
+
+    // Sorts the segment as above with the given thresholds, reporting the parallelism and any heap sort fallback
+    // to the given event if not null, and stopping early once the given handle, if not null, asks it to.
+    private static void sortArray(double[] array, int left, int right, int size, SortTuning tuning, SortEvent event,
+                                  SortHandle cancellation) {
         int numNegativeZero = 0; // Counter for negative zero values within the segment.
 
         // Partition special values (NaNs and negative zeros) before sorting.
-        for (int k = right; k > left; ) {
-            double ak = array[--k];
+        // The scan covers the whole segment, right being the index of its last element.
+        for (int k = right; k >= left; k--) {
+            double ak = array[k];
             // Check for and handle negative zeros, ensuring they are treated distinctly from positive zeros.
             if (ak == 0.0d && Double.doubleToRawLongBits(ak) < 0) {
                 numNegativeZero += 1;
                 array[k] = 0.0d; // Convert to positive zero for consistent sorting.
             } else if (ak != ak) { // Check for NaN values.
                 // Move NaNs to the end of the segment to be excluded from sorting.
-                array[k] = array[--right];
-                array[right] = ak;
+                array[k] = array[right];
+                array[right--] = ak;
             }
         }
 
         // Determine maximum recursion depth based on segment size to prevent stack overflow.
-        int maxDepth = (int) (2 * Math.floor(Math.log(size) / Math.log(2)));
+        int maxDepth = maxDepth(size);
         // Create a sorting task with the prepared segment.
-        SortTask sortTask = new SortTask(array, left, right, maxDepth);
+        SortTask sortTask = new SortTask(array, left, right, maxDepth, tuning.insertionSortThreshold,
+                tuning.minParallelThreshold, event, cancellation);
         // Use parallel or sequential sorting based on the segment size.
-        if (size > MIN_PARALLEL_THRESHOLD) {
+        if (size > tuning.minParallelThreshold) {
+            if (event != null) {
+                event.parallelism = POOL.getParallelism();
+            }
             POOL.invoke(sortTask); // Parallel execution for larger segments.
         } else {
-            sortTask.compute(); // Sequential execution for smaller segments.
+            sortTask.compute(); // Sequential execution for smaller segments, which never fork below the grain.
         }
 
-        // Handle the special case where only one negative zero is present.
-        if (++numNegativeZero == 1) {
+        // Nothing to restore when the segment held no negative zeros.
+        if (numNegativeZero == 0) {
+            return;
+        }
+
+        // A stopped sort leaves the zeros scattered, so the negative zeros are restored on the first zeros found.
+        // The segment then holds exactly the values it started with.
+        if (cancellation != null && cancellation.isStopped()) {
+            for (int i = left; i <= right && numNegativeZero > 0; i++) {
+                if (array[i] == 0.0d) {
+                    array[i] = -0.0d;
+                    numNegativeZero--;
+                }
+            }
             return;
         }
 
@@ -483,10 +836,250 @@ public class CustomSort {
         }
     }
 
+    // Maximum quicksort recursion depth for a segment of the given size, after which heap sort takes over.
+    static int maxDepth(int size) {
+        return (int) (2 * Math.floor(Math.log(size) / Math.log(2)));
+    }
+
+    // Sorts an array segment in the order of the given comparator, wrapping the sort in a flight recorder event when the
+    // segment reaches the event threshold. Returns the strategy taken, as recorded by SortEvent.
+    private static String sortArray(double[] array, int left, int right, DoubleComparator comparator, SortTuning tuning,
+                                    SortEvent event) {
+        int size = right - left + 1;
+
+        // Comparator calls are too costly for the sampling heuristic to pay off, so the presorted shortcuts use a single
+        // sequential pass, which stops at the first pair found out of order in both directions.
+        boolean sorted = true;
+        boolean reverseSorted = true;
+        for (int i = left; i < right && (sorted || reverseSorted); i++) {
+            int order = comparator.compare(array[i], array[i + 1]);
+            if (order > 0) {
+                sorted = false;
+            }
+            if (order < 0) {
+                reverseSorted = false;
+            }
+        }
+        if (sorted) {
+            return SortEvent.SORTED;
+        }
+        if (reverseSorted) {
+            reverse(array, left, right);
+            return SortEvent.REVERSED;
+        }
+
+        ComparatorSortTask sortTask = new ComparatorSortTask(array, left, right, maxDepth(size),
+                tuning.insertionSortThreshold, tuning.minParallelThreshold, comparator, event);
+        if (size > tuning.minParallelThreshold) {
+            if (event != null) {
+                event.parallelism = POOL.getParallelism();
+            }
+            POOL.invoke(sortTask);
+        } else {
+            sortTask.compute();
+        }
+        return SortEvent.QUICKSORT;
+    }
+
     // Entry method to sort an entire array.
     public static void sort(double[] a) {
         // Delegate to sortArray for the entire array range.
-        sortArray(a, 0, a.length - 1);
+        sortArray(a, 0, a.length - 1, tuning);
+    }
+
+    // Sorts an entire array on the pool without blocking the caller and completes the future with the array once it is
+    // sorted. The root of the sort is submitted to the pool like every other task, so no thread waits for the result;
+    // the future's callbacks run on the pool thread that finishes the sort. Cancelling the future requests the stop as
+    // SortHandle.cancel() does, and the future completes with a CancellationException only once no task touches the
+    // array any more. To bound the number of concurrent sorts, submit them through a SortQueue instead.
+    public static CompletableFuture<double[]> sortAsync(double[] a) {
+        return sortCancellable(a).future();
+    }
+
+    // Starts sorting an entire array in the background on the pool and returns a handle that can cancel the sort.
+    // Once cancelled, the sort stops at the next fork boundary and leaves the array as a permutation of its input.
+    public static SortHandle sortCancellable(double[] a) {
+        return sortCancellable(a, new SortHandle(a, Long.MAX_VALUE, false));
+    }
+
+    // Like sortCancellable, additionally stopping the sort once the timeout, counted from this call, has elapsed.
+    // A sort that could not finish in time completes its handle with a TimeoutException.
+    public static SortHandle sortCancellable(double[] a, Duration timeout) {
+        if (timeout == null) {
+            throw new IllegalArgumentException("Timeout must not be null");
+        }
+        return sortCancellable(a, new SortHandle(a, TimeUnit.NANOSECONDS.convert(timeout), true));
+    }
+
+    // Starts the sort of an entire array under the given handle, which is returned.
+    static SortHandle sortCancellable(double[] a, SortHandle handle) {
+        SortTuning tuning = CustomSort.tuning;
+        // The root runs on a pool thread, so the caller is never blocked; the handle completes when the sort returns.
+        POOL.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    sortArray(a, 0, a.length - 1, tuning, handle);
+                    handle.complete();
+                } catch (Throwable failure) {
+                    handle.fail(failure);
+                }
+            }
+        });
+        return handle;
+    }
+
+    // Sorts an entire array in the order of the given comparator, without boxing any element.
+    // The sort is not stable: values the comparator considers equal may be reordered.
+    public static void sort(double[] a, DoubleComparator comparator) {
+        if (comparator == null) {
+            throw new IllegalArgumentException("Comparator must not be null");
+        }
+        SortTuning tuning = CustomSort.tuning;
+        traced(a.length, event -> sortArray(a, 0, a.length - 1, comparator, tuning, event));
+    }
+
+    // Sorts an entire array in descending Double.compare order: NaNs first, then from positive infinity down,
+    // 0.0 before -0.0. The array is sorted ascending with the primitive comparisons of sort and then reversed,
+    // which costs one extra pass instead of a comparator call per comparison.
+    public static void sortDescending(double[] a) {
+        sort(a);
+        reverse(a, 0, a.length - 1);
+    }
+
+    // Sorts objects by a double key in Double.compare order. The key function is called exactly once per element:
+    // the keys are extracted into a primitive array, in parallel for large arrays, and sorted together with the
+    // object positions by the CustomSort engine. The sort is not stable; see sortByStable.
+    public static <T> void sortBy(T[] items, ToDoubleFunction<? super T> key) {
+        sortBy(items, key, false, new SortContext());
+    }
+
+    // Like sortBy, taking its key, permutation and gather buffers from the given context instead of allocating them.
+    public static <T> void sortBy(T[] items, ToDoubleFunction<? super T> key, SortContext context) {
+        sortBy(items, key, false, context);
+    }
+
+    // Like sortBy, but objects with equal keys keep their original relative order.
+    public static <T> void sortByStable(T[] items, ToDoubleFunction<? super T> key) {
+        sortBy(items, key, true, new SortContext());
+    }
+
+    // Like sortByStable, taking its buffers from the given context instead of allocating them.
+    public static <T> void sortByStable(T[] items, ToDoubleFunction<? super T> key, SortContext context) {
+        sortBy(items, key, true, context);
+    }
+
+    private static <T> void sortBy(T[] items, ToDoubleFunction<? super T> key, boolean stable, SortContext context) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key function must not be null");
+        }
+        SortTuning tuning = CustomSort.tuning;
+        context.enter();
+        try {
+            traced(items.length, event -> KeyedSort.sortBy(items, key, stable, context, tuning, event));
+        } finally {
+            context.exit();
+        }
+    }
+
+    // Stably sorts the keys in Double.compare order and applies the same permutation to the payload, for example row IDs
+    // co-sorted with their values. Equal keys keep their original relative order, so the result is the same for any
+    // number of threads and any scheduling of the pool. This mode uses a parallel merge sort, which needs scratch memory
+    // of about 16 bytes per key plus 4 per payload element; presorted input is detected first and needs none.
+    public static void sortStable(double[] keys, int[] payload) {
+        sortStable(keys, payload, new SortContext());
+    }
+
+    // Like sortStable, taking its scratch buffers from the given context, so that repeated sorts of similar sizes
+    // allocate nothing once the context has grown to fit them.
+    public static void sortStable(double[] keys, int[] payload, SortContext context) {
+        if (keys.length != payload.length) {
+            throw new IllegalArgumentException("Keys and payload differ in length: " + keys.length + " != " + payload.length);
+        }
+        SortTuning tuning = CustomSort.tuning;
+        context.enter();
+        try {
+            traced(keys.length, event -> StableSort.sort(keys, payload, context, tuning, event));
+        } finally {
+            context.exit();
+        }
+    }
+
+    // Sorts the rows of a columnar batch, row i being columns[c][i] for every column, lexicographically by the key
+    // columns in the given order, each in Double.compare order. Without key columns, all columns are keys, in order.
+    // The row permutation is computed with the CustomSort engine, refining runs of equal keys by the next key column
+    // in parallel, and every column is then permuted with one parallel gather. Rows with equal keys keep their order.
+    // The column arrays are sorted in place; an array listed more than once is permuted once.
+    public static void sortRows(double[][] columns, int... keyOrder) {
+        sortRows(columns, new SortContext(), keyOrder);
+    }
+
+    // Like sortRows, taking its key, permutation and gather buffers from the given context instead of allocating them.
+    public static void sortRows(double[][] columns, SortContext context, int... keyOrder) {
+        if (columns.length == 0) {
+            return;
+        }
+        int size = columns[0].length;
+        for (int c = 1; c < columns.length; c++) {
+            if (columns[c].length != size) {
+                throw new IllegalArgumentException("Column " + c + " differs in length: " + columns[c].length + " != " + size);
+            }
+        }
+        int[] keys = keyOrder.length > 0 ? keyOrder : IntStream.range(0, columns.length).toArray();
+        for (int key : keys) {
+            if (key < 0 || key >= columns.length) {
+                throw new IllegalArgumentException("Key column " + key + " out of range for " + columns.length + " columns");
+            }
+        }
+        SortTuning tuning = CustomSort.tuning;
+        context.enter();
+        try {
+            traced(size, event -> RowSort.sortRows(columns, keys, context, tuning, event));
+        } finally {
+            context.exit();
+        }
+    }
+
+    // Collects and sorts the values of a stream. Chunks of values are sorted on the pool while the stream is still
+    // producing the next ones, and the sorted chunks are merged in parallel at the end (see SortingDoubleSink).
+    // Parallel streams give every split its own sink. The merge holds the sorted chunks and the result at once, about
+    // twice the data at its peak. To keep a single copy, collect into a SortingDoubleSink and read sortedStream().
+    public static double[] sorted(DoubleStream stream) {
+        return stream.collect(SortingDoubleSink::new, SortingDoubleSink::accept, SortingDoubleSink::combine)
+                .toSortedArray();
+    }
+
+    // Sorts an entire array with the given thresholds instead of the installed tuning. Used by calibration.
+    static void sort(double[] a, SortTuning tuning) {
+        sortArray(a, 0, a.length - 1, tuning);
+    }
+
+    // Returns the thresholds currently used by sort.
+    public static SortTuning getTuning() {
+        return tuning;
+    }
+
+    // Replaces the thresholds used by sort, for example with a SortTuning loaded from a profile or built by hand.
+    // Sorts already running keep the tuning they started with.
+    public static void setTuning(SortTuning newTuning) {
+        if (newTuning == null) {
+            throw new IllegalArgumentException("Tuning must not be null");
+        }
+        tuning = newTuning;
+    }
+
+    // Returns the minimum array size for which a flight recorder SortEvent is emitted.
+    public static int getEventThreshold() {
+        return eventThreshold;
+    }
+
+    // Sets the minimum array size for which a flight recorder SortEvent is emitted.
+    // Integer.MAX_VALUE effectively disables the events, 0 traces every sort.
+    public static void setEventThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Event threshold must not be negative: " + threshold);
+        }
+        eventThreshold = threshold;
     }
 
 
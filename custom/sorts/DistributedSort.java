@@ -0,0 +1,214 @@
+package custom.sorts;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Coordinator of a sample sort over data that is spread across several workers, for datasets larger than one JVM can
+ * hold. Every worker keeps its partition; the coordinator only sees samples and splitters.
+ *
+ * The sort runs in four phases, each started on all workers at once and finished when the slowest worker is done:
+ *  - sampling: every worker draws random samples, which the coordinator sorts to pick one splitter per worker boundary,
+ *  - shuffle: every worker splits its partition by the splitters and sends bucket j to worker j, peer to peer,
+ *  - local sort: every worker sorts the buckets it received with CustomSort,
+ *  - write: every worker writes its sorted range to its output.
+ * Worker j then holds exactly the values between splitters j - 1 and j, so the concatenation of the workers' outputs in
+ * worker order is the globally sorted data, range-partitioned across the workers. The wall time of every phase is
+ * reported in the Result, which shows whether the shuffle or the sort dominates.
+ *
+ * Workers are LocalSortWorkers for an in-process run, or RemoteSortWorkers connected to SortWorkerServers in other
+ * JVMs, on localhost or elsewhere. Equal values always go to the same worker, so heavily repeated values can make one
+ * range larger than the others.
+ */
+public final class DistributedSort {
+
+    // Samples drawn per worker by default. Oversampling by this much keeps the ranges within a few percent of each
+    // other for a handful of workers, while the samples stay negligible next to the data.
+    static final int DEFAULT_SAMPLES_PER_WORKER = 256;
+
+    private DistributedSort() {
+    }
+
+    public static Result sort(List<? extends SortWorker> workers) throws IOException {
+        return sort(workers, DEFAULT_SAMPLES_PER_WORKER);
+    }
+
+    // Sorts the data held by the workers. The workers are not closed. When a worker fails, the sort is abandoned with
+    // its exception, and the workers cannot be used again.
+    public static Result sort(List<? extends SortWorker> workers, int samplesPerWorker) throws IOException {
+        if (workers.isEmpty()) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        if (samplesPerWorker <= 0) {
+            throw new IllegalArgumentException("Samples per worker must be positive: " + samplesPerWorker);
+        }
+        int count = workers.size();
+        // One coordinator thread per worker, as the calls block until the worker has finished the phase.
+        ExecutorService executor = Executors.newFixedThreadPool(count, task -> {
+            Thread thread = new Thread(task, "distributed-sort-coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long start = System.nanoTime();
+            List<double[]> samples = onAllWorkers(executor, workers, (index, worker) -> worker.sample(samplesPerWorker));
+            double[] splitters = chooseSplitters(samples, count);
+
+            long shuffleStart = System.nanoTime();
+            onAllWorkers(executor, workers, (index, worker) -> {
+                worker.shuffle(index, splitters, workers);
+                return null;
+            });
+
+            long sortStart = System.nanoTime();
+            List<Long> sizes = onAllWorkers(executor, workers, (index, worker) -> worker.sortLocal());
+
+            long writeStart = System.nanoTime();
+            onAllWorkers(executor, workers, (index, worker) -> worker.write());
+            long end = System.nanoTime();
+
+            long[] rangeSizes = new long[count];
+            for (int i = 0; i < count; i++) {
+                rangeSizes[i] = sizes.get(i);
+            }
+            return new Result(splitters, rangeSizes, shuffleStart - start, sortStart - shuffleStart,
+                    writeStart - sortStart, end - writeStart);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Sorts all samples and takes the values at evenly spaced ranks as the boundaries between the workers' ranges.
+    static double[] chooseSplitters(List<double[]> samples, int workers) {
+        int total = 0;
+        for (double[] workerSamples : samples) {
+            total += workerSamples.length;
+        }
+        double[] all = new double[total];
+        int out = 0;
+        for (double[] workerSamples : samples) {
+            System.arraycopy(workerSamples, 0, all, out, workerSamples.length);
+            out += workerSamples.length;
+        }
+        CustomSort.sort(all);
+        double[] splitters = new double[workers - 1];
+        if (total == 0) {
+            return splitters;
+        }
+        for (int j = 1; j < workers; j++) {
+            splitters[j - 1] = all[(int) ((long) total * j / workers)];
+        }
+        return splitters;
+    }
+
+    // Runs the call on every worker at once, passing each worker's index, and returns the results in worker order once
+    // all have finished. Results are collected in completion order, so that the first failure is reported right away
+    // instead of after workers that may be waiting forever for a bucket from the failed one.
+    private static <R> List<R> onAllWorkers(ExecutorService executor, List<? extends SortWorker> workers,
+                                            WorkerCall<R> call) throws IOException {
+        CompletionService<R> completion = new ExecutorCompletionService<>(executor);
+        List<Future<R>> futures = new ArrayList<>(workers.size());
+        for (int i = 0; i < workers.size(); i++) {
+            int index = i;
+            SortWorker worker = workers.get(i);
+            futures.add(completion.submit(() -> call.apply(index, worker)));
+        }
+        List<R> results = new ArrayList<>(workers.size());
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                completion.take().get();
+            }
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the workers", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Worker failed", cause);
+        }
+        return results;
+    }
+
+    @FunctionalInterface
+    private interface WorkerCall<R> {
+        R apply(int index, SortWorker worker) throws IOException;
+    }
+
+
+
+    /**
+     * Outcome of a DistributedSort: the splitters that bound the workers' ranges, the number of values every worker
+     * ended up with, and the wall time of every phase as seen by the coordinator.
+     */
+    public static final class Result {
+        private final double[] splitters;
+        private final long[] rangeSizes;
+        private final long samplingNanos;
+        private final long shuffleNanos;
+        private final long sortNanos;
+        private final long writeNanos;
+
+        Result(double[] splitters, long[] rangeSizes, long samplingNanos, long shuffleNanos, long sortNanos,
+               long writeNanos) {
+            this.splitters = splitters;
+            this.rangeSizes = rangeSizes;
+            this.samplingNanos = samplingNanos;
+            this.shuffleNanos = shuffleNanos;
+            this.sortNanos = sortNanos;
+            this.writeNanos = writeNanos;
+        }
+
+        // Worker j holds the values from splitters[j - 1], inclusive, up to splitters[j], exclusive.
+        public double[] splitters() {
+            return splitters.clone();
+        }
+
+        // Number of values every worker holds after the sort, in worker order.
+        public long[] rangeSizes() {
+            return rangeSizes.clone();
+        }
+
+        public Duration samplingTime() {
+            return Duration.ofNanos(samplingNanos);
+        }
+
+        public Duration shuffleTime() {
+            return Duration.ofNanos(shuffleNanos);
+        }
+
+        public Duration sortTime() {
+            return Duration.ofNanos(sortNanos);
+        }
+
+        public Duration writeTime() {
+            return Duration.ofNanos(writeNanos);
+        }
+
+        public Duration totalTime() {
+            return Duration.ofNanos(samplingNanos + shuffleNanos + sortNanos + writeNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sampling %.1f ms, shuffle %.1f ms, local sort %.1f ms, write %.1f ms",
+                    samplingNanos / 1e6, shuffleNanos / 1e6, sortNanos / 1e6, writeNanos / 1e6);
+        }
+    }
+}
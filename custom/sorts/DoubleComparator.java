@@ -0,0 +1,58 @@
+package custom.sorts;
+
+
+/**
+ * A comparison function over primitive doubles, the unboxed counterpart of {@code Comparator<Double>}.
+ * CustomSort.sort(double[], DoubleComparator) calls it directly at every comparison site, so a sort that always uses
+ * the same comparator sees a monomorphic call that the JIT can inline, without boxing any element.
+ * Implementations must impose a total order, in the same sense as {@link java.util.Comparator}.
+ */
+@FunctionalInterface
+public interface DoubleComparator {
+
+    // Returns a negative integer, zero, or a positive integer as a is less than, equal to, or greater than b.
+    int compare(double a, double b);
+
+    // Returns a comparator that imposes the reverse of this comparator's order.
+    default DoubleComparator reversed() {
+        return (a, b) -> compare(b, a);
+    }
+
+    // Returns a comparator that orders by this comparator first and breaks ties with the other one.
+    default DoubleComparator thenComparing(DoubleComparator other) {
+        return (a, b) -> {
+            int result = compare(a, b);
+            return result != 0 ? result : other.compare(a, b);
+        };
+    }
+
+    // The Double.compare order used by CustomSort.sort: -0.0 before 0.0, NaN after positive infinity.
+    static DoubleComparator naturalOrder() {
+        return Double::compare;
+    }
+
+    // The reverse of the Double.compare order, as produced by CustomSort.sortDescending.
+    static DoubleComparator reverseOrder() {
+        return (a, b) -> Double.compare(b, a);
+    }
+
+    // Orders by absolute value, then by the Double.compare order so that -x comes before x.
+    static DoubleComparator byAbsoluteValue() {
+        return (a, b) -> {
+            int result = Double.compare(Math.abs(a), Math.abs(b));
+            return result != 0 ? result : Double.compare(a, b);
+        };
+    }
+
+    // The Double.compare order, except that NaN values come first instead of last.
+    static DoubleComparator nanFirst() {
+        return (a, b) -> {
+            boolean aNaN = a != a;
+            boolean bNaN = b != b;
+            if (aNaN || bNaN) {
+                return aNaN == bNaN ? 0 : (aNaN ? -1 : 1);
+            }
+            return Double.compare(a, b);
+        };
+    }
+}
@@ -0,0 +1,339 @@
+package custom.sorts;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToDoubleFunction;
+
+
+/**
+ * Key-extraction sort behind CustomSort.sortBy. Instead of calling the key function on every comparison, as
+ * Arrays.sort with Comparator.comparingDouble does, the keys are extracted once into a primitive array (in parallel for
+ * large inputs), sorted together with the index permutation by the CustomSort quicksort, and the items are then
+ * gathered into their sorted positions. The key function is therefore called exactly once per element.
+ *
+ * Keys are stored as sortable long bits (see CustomSort.sortableBits), so the order is the Double.compare order,
+ * NaN and -0.0 included, and every comparison is a single long comparison. The stable variant breaks ties between
+ * equal keys on the original index, which makes the order a strict total order and the result fully deterministic.
+ */
+final class KeyedSort {
+
+    private KeyedSort() {
+    }
+
+    // Sorts the items by the extracted key, taking the key, permutation and gather buffers from the context.
+    // Returns the strategy taken, as recorded by SortEvent.
+    static <T> String sortBy(T[] items, ToDoubleFunction<? super T> key, boolean stable, SortContext context,
+                             SortTuning tuning, SortEvent event) {
+        int size = items.length;
+        // The buffers may be longer than the items; every task below only works on [0, size).
+        long[] keys = context.longs(0, size);
+        int[] order = context.ints(size);
+
+        // Extract every key exactly once, together with the identity permutation.
+        ExtractKeysTask<T> extractTask = new ExtractKeysTask<>(items, key, keys, order, 0, size, tuning.minParallelThreshold);
+        boolean parallel = size > tuning.minParallelThreshold;
+        if (parallel) {
+            if (event != null) {
+                event.parallelism = CustomSort.POOL.getParallelism();
+            }
+            CustomSort.POOL.invoke(extractTask);
+        } else {
+            extractTask.compute();
+        }
+
+        // Presorted shortcuts. A sorted input is left as is. A descending input is reversed, which is only stable
+        // when no two keys are equal, so the stable variant requires it to be strictly descending.
+        boolean sorted = true;
+        boolean reverseSorted = true;
+        for (int i = 1; i < size && (sorted || reverseSorted); i++) {
+            if (keys[i - 1] > keys[i]) {
+                sorted = false;
+            }
+            if (keys[i - 1] < keys[i] || (stable && keys[i - 1] == keys[i])) {
+                reverseSorted = false;
+            }
+        }
+        if (sorted) {
+            return SortEvent.SORTED;
+        }
+        if (reverseSorted) {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                T temp = items[i];
+                items[i] = items[j];
+                items[j] = temp;
+            }
+            return SortEvent.REVERSED;
+        }
+
+        KeyedSortTask sortTask = new KeyedSortTask(keys, order, 0, size - 1, CustomSort.maxDepth(size),
+                tuning.insertionSortThreshold, tuning.minParallelThreshold, stable, event);
+        if (parallel) {
+            CustomSort.POOL.invoke(sortTask);
+        } else {
+            sortTask.compute();
+        }
+
+        // Move every item to its sorted position in one pass over the permutation, then clear the copy so that the
+        // context does not keep the items reachable.
+        Object[] source = context.objects(size);
+        System.arraycopy(items, 0, source, 0, size);
+        GatherTask gatherTask = new GatherTask(source, items, order, 0, size, tuning.minParallelThreshold);
+        if (parallel) {
+            CustomSort.POOL.invoke(gatherTask);
+        } else {
+            gatherTask.compute();
+        }
+        Arrays.fill(source, 0, size, null);
+        return SortEvent.QUICKSORT;
+    }
+
+
+
+    // Fills keys[from, to) with the sortable key bits of the matching items and order[from, to) with their indices,
+    // splitting the range across the pool until it is no larger than the leaf size.
+    static class ExtractKeysTask<T> extends RecursiveAction {
+        private final T[] items;
+        private final ToDoubleFunction<? super T> key;
+        private final long[] keys;
+        private final int[] order;
+        private final int from; // First index of the range, inclusive.
+        private final int to; // Last index of the range, exclusive.
+        private final int leafSize;
+
+        ExtractKeysTask(T[] items, ToDoubleFunction<? super T> key, long[] keys, int[] order, int from, int to, int leafSize) {
+            this.items = items;
+            this.key = key;
+            this.keys = keys;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= leafSize) {
+                for (int i = from; i < to; i++) {
+                    keys[i] = CustomSort.sortableBits(key.applyAsDouble(items[i]));
+                    order[i] = i;
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ExtractKeysTask<>(items, key, keys, order, from, mid, leafSize),
+                        new ExtractKeysTask<>(items, key, keys, order, mid, to, leafSize));
+            }
+        }
+    }
+
+
+
+    // Writes target[i] = source[order[i]] for i in [from, to), splitting the range across the pool like ExtractKeysTask.
+    static class GatherTask extends RecursiveAction {
+        private final Object[] source;
+        private final Object[] target;
+        private final int[] order;
+        private final int from;
+        private final int to;
+        private final int leafSize;
+
+        GatherTask(Object[] source, Object[] target, int[] order, int from, int to, int leafSize) {
+            this.source = source;
+            this.target = target;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= leafSize) {
+                for (int i = from; i < to; i++) {
+                    target[i] = source[order[i]];
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new GatherTask(source, target, order, from, mid, leafSize),
+                        new GatherTask(source, target, order, mid, to, leafSize));
+            }
+        }
+    }
+
+
+
+    /**
+     * Sorts sortable key bits together with the index permutation, using the CustomSort strategy: insertion sort for
+     * small segments, golden ratio pivot quicksort in parallel, and heap sort once the depth limit is reached.
+     * Every move of a key is mirrored in the permutation. Indices are swapped instead of the item references themselves,
+     * which keeps the shuffling on primitive arrays and away from the GC card marks that reference stores incur.
+     * When stable is set, equal keys are ordered by their original index. Segments no larger than the grain are
+     * sorted on the current thread, so a task for a segment below the grain never forks and can be run directly by
+     * a thread outside the pool.
+     */
+    static class KeyedSortTask extends RecursiveAction {
+        private final long[] keys; // Sortable bits of the keys.
+        private final int[] order; // Original index of the item each key belongs to.
+        private final int left; // The starting index of the segment.
+        private final int right; // The ending index of the segment, inclusive.
+        private final int depthLimit; // Remaining recursion depth before switching to heap sort.
+        private final int insertionSortThreshold; // The insertion sort cut-off of the sort this task belongs to.
+        private final int grain; // Segments up to this size are sorted without forking.
+        private final boolean stable; // Whether ties are broken on the original index.
+        private final SortEvent event; // The flight recorder event of the sort, or null when the sort is not traced.
+
+        KeyedSortTask(long[] keys, int[] order, int left, int right, int depthLimit, int insertionSortThreshold,
+                      int grain, boolean stable, SortEvent event) {
+            this.keys = keys;
+            this.order = order;
+            this.left = left;
+            this.right = right;
+            this.depthLimit = depthLimit;
+            this.insertionSortThreshold = insertionSortThreshold;
+            this.grain = grain;
+            this.stable = stable;
+            this.event = event;
+        }
+
+        @Override
+        protected void compute() {
+            int size = right - left + 1;
+
+            if (size <= insertionSortThreshold) {
+                insertionSort(left, right);
+            } else if (depthLimit <= 0) {
+                if (event != null) {
+                    event.heapFallback = true;
+                }
+                heapSort(left, right + 1);
+            } else {
+                int pivot = choosePivotByGoldenRation(left, right);
+                pivot = partition(left, right, pivot);
+                KeyedSortTask leftTask = new KeyedSortTask(keys, order, left, pivot - 1, depthLimit - 1,
+                        insertionSortThreshold, grain, stable, event);
+                KeyedSortTask rightTask = new KeyedSortTask(keys, order, pivot + 1, right, depthLimit - 1,
+                        insertionSortThreshold, grain, stable, event);
+                if (size > grain) {
+                    invokeAll(leftTask, rightTask);
+                } else {
+                    leftTask.compute();
+                    rightTask.compute();
+                }
+            }
+        }
+
+        // Whether the entry (key1, index1) sorts before (key2, index2).
+        private boolean less(long key1, int index1, long key2, int index2) {
+            return key1 < key2 || (stable && key1 == key2 && index1 < index2);
+        }
+
+        // Whether the entry at position i sorts before the entry at position j.
+        private boolean less(int i, int j) {
+            return less(keys[i], order[i], keys[j], order[j]);
+        }
+
+        private void insertionSort(int left, int right) {
+            for (int i = left + 1; i <= right; i++) {
+                long key = keys[i];
+                int index = order[i];
+                int j = i;
+                while (j > left && less(key, index, keys[j - 1], order[j - 1])) {
+                    keys[j] = keys[j - 1];
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                keys[j] = key;
+                order[j] = index;
+            }
+        }
+
+        // Heap sort of [low, high), high being exclusive.
+        private void heapSort(int low, int high) {
+            for (int k = (low + high) >>> 1; k > low; ) {
+                --k;
+                pushDown(k, keys[k], order[k], low, high);
+            }
+            while (--high > low) {
+                long maxKey = keys[low];
+                int maxIndex = order[low];
+                pushDown(low, keys[high], order[high], low, high);
+                keys[high] = maxKey;
+                order[high] = maxIndex;
+            }
+        }
+
+        // Pushes the entry (key, index) down from position p until the max heap property holds.
+        private void pushDown(int p, long key, int index, int low, int high) {
+            for (int k ;; p = k) {
+                k = (p << 1) - low + 2;
+
+                if (k > high) {
+                    break;
+                }
+                if (k == high || less(k, k - 1)) {
+                    --k;
+                }
+                if (!less(key, index, keys[k], order[k])) {
+                    break;
+                }
+                keys[p] = keys[k];
+                order[p] = order[k];
+            }
+            keys[p] = key;
+            order[p] = index;
+        }
+
+        // Same five element golden ratio sampling as SortTask.choosePivotByGoldenRation, moving whole entries.
+        private int choosePivotByGoldenRation(int left, int right) {
+            int size = right - left + 1;
+            int step = (size >> 3) * 3 + 3;
+
+            int e1 = left + step;
+            int e5 = right - step;
+            int e3 = (e1 + e5) >>> 1;
+            int e2 = (e1 + e3) >>> 1;
+            int e4 = (e3 + e5) >>> 1;
+
+            // Sorting network over the five samples, which leaves the median at e3.
+            if (less(e5, e2)) swap(e5, e2);
+            if (less(e4, e1)) swap(e4, e1);
+            if (less(e5, e4)) swap(e5, e4);
+            if (less(e2, e1)) swap(e2, e1);
+            if (less(e4, e2)) swap(e4, e2);
+            if (less(e3, e2)) {
+                swap(e3, e2);
+                if (less(e2, e1)) swap(e2, e1);
+            } else if (less(e4, e3)) {
+                swap(e3, e4);
+                if (less(e5, e4)) swap(e5, e4);
+            }
+
+            return e3;
+        }
+
+        private int partition(int left, int right, int pivotIndex) {
+            long pivotKey = keys[pivotIndex];
+            int pivotOrder = order[pivotIndex];
+            swap(pivotIndex, right);
+
+            int storeIndex = left;
+            for (int i = left; i < right; i++) {
+                if (less(keys[i], order[i], pivotKey, pivotOrder)) {
+                    swap(i, storeIndex);
+                    storeIndex++;
+                }
+            }
+            swap(storeIndex, right);
+
+            return storeIndex;
+        }
+
+        private void swap(int i, int j) {
+            long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            int index = order[i];
+            order[i] = order[j];
+            order[j] = index;
+        }
+    }
+}
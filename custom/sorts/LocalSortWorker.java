@@ -0,0 +1,72 @@
+package custom.sorts;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+
+/**
+ * An in-process SortWorker. Buckets are handed to the peer workers directly instead of over a socket, so a
+ * DistributedSort of LocalSortWorkers runs every phase of the real protocol in one JVM, for tests and for comparing
+ * the cost of the shuffle against the sockets.
+ */
+public final class LocalSortWorker implements SortWorker {
+
+    private final SampleSortNode node;
+
+    public LocalSortWorker(double[] partition) {
+        this(partition, null);
+    }
+
+    // Creates a worker that writes its sorted range to the given file as raw big-endian doubles.
+    public LocalSortWorker(double[] partition, Path output) {
+        this.node = new SampleSortNode(partition, output, SampleSortNode.DEFAULT_BUCKET_TIMEOUT);
+    }
+
+    @Override
+    public double[] sample(int count) {
+        return node.sample(count);
+    }
+
+    @Override
+    public void shuffle(int index, double[] splitters, List<? extends SortWorker> peers) throws IOException {
+        for (SortWorker peer : peers) {
+            if (!(peer instanceof LocalSortWorker)) {
+                throw new IllegalArgumentException("Local workers can only shuffle with local workers: " + peer);
+            }
+        }
+        node.scatter(splitters);
+        for (int target = 0; target < peers.size(); target++) {
+            ((LocalSortWorker) peers.get(target)).node.expect(index, peers.size(), node.bucketSize(target));
+        }
+        // Start with the next peer, so that the workers do not all deliver to the same one at the same time. Every
+        // bucket is copied from its range of the scattered partition straight into the peer's receiving array.
+        double[] partitioned = node.partitioned();
+        for (int k = 0; k < peers.size(); k++) {
+            int target = (index + k) % peers.size();
+            int start = node.bucketStart(target);
+            ((LocalSortWorker) peers.get(target)).node.accept(index,
+                    (values, offset, length) -> System.arraycopy(partitioned, start, values, offset, length));
+        }
+        node.awaitBuckets();
+    }
+
+    @Override
+    public long sortLocal() {
+        return node.sortLocal();
+    }
+
+    @Override
+    public long write() throws IOException {
+        return node.write();
+    }
+
+    // The sorted range of this worker, once the sort is done.
+    public double[] sorted() {
+        return node.sorted();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,97 @@
+package custom.sorts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+
+/**
+ * The coordinator's end of the control connection to a SortWorkerServer. Every call sends one command and waits
+ * for the worker's answer. A failure on the worker side is reported as an IOException carrying the worker's message.
+ * The address given here is also the one the other workers use to reach this worker during the shuffle.
+ */
+public final class RemoteSortWorker implements SortWorker {
+
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public RemoteSortWorker(String host, int port) throws IOException {
+        this.address = InetSocketAddress.createUnresolved(host, port);
+        this.socket = new Socket(host, port);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeByte(SortWorkerServer.CONTROL_CONNECTION);
+        out.flush();
+    }
+
+    @Override
+    public double[] sample(int count) throws IOException {
+        out.writeByte(SortWorkerServer.SAMPLE);
+        out.writeInt(count);
+        awaitReply();
+        return SampleSortNode.readDoubles(in, in.readInt());
+    }
+
+    @Override
+    public void shuffle(int index, double[] splitters, List<? extends SortWorker> peers) throws IOException {
+        for (SortWorker peer : peers) {
+            if (!(peer instanceof RemoteSortWorker)) {
+                throw new IllegalArgumentException("Remote workers can only shuffle with remote workers: " + peer);
+            }
+        }
+        out.writeByte(SortWorkerServer.SHUFFLE);
+        out.writeInt(index);
+        out.writeInt(peers.size());
+        for (SortWorker peer : peers) {
+            InetSocketAddress peerAddress = ((RemoteSortWorker) peer).address;
+            out.writeUTF(peerAddress.getHostString());
+            out.writeInt(peerAddress.getPort());
+        }
+        out.writeInt(splitters.length);
+        SampleSortNode.writeDoubles(out, splitters, 0, splitters.length);
+        awaitReply();
+    }
+
+    @Override
+    public long sortLocal() throws IOException {
+        out.writeByte(SortWorkerServer.SORT);
+        awaitReply();
+        return in.readLong();
+    }
+
+    @Override
+    public long write() throws IOException {
+        out.writeByte(SortWorkerServer.WRITE);
+        awaitReply();
+        return in.readLong();
+    }
+
+    // Stops the worker server and closes the connection.
+    @Override
+    public void close() throws IOException {
+        try (socket) {
+            out.writeByte(SortWorkerServer.CLOSE);
+            awaitReply();
+        }
+    }
+
+    // Sends the pending command and reads the status of the answer.
+    private void awaitReply() throws IOException {
+        out.flush();
+        if (in.readByte() != SortWorkerServer.OK) {
+            throw new IOException("Worker " + this + " failed: " + in.readUTF());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+}
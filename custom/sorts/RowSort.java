@@ -0,0 +1,233 @@
+package custom.sorts;
+
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Lexicographic sort of the rows of a columnar batch behind CustomSort.sortRows. Row i consists of columns[c][i] for
+ * every column, and rows are ordered by the key columns in turn, each in the Double.compare order.
+ *
+ * No row objects are created. The row permutation is computed first: the primary key column is sorted together with
+ * the row indices by the CustomSort quicksort (see KeyedSort.KeyedSortTask), and every run of rows with an equal
+ * primary key is then refined by the next key column, the runs being independent of each other and refined in
+ * parallel. Ties that remain after the last key column are broken on the row index, so the sort is stable and its
+ * result does not depend on the number of threads. Finally every column is permuted with one parallel gather.
+ *
+ * The gather cannot write into the column it reads from, so every column is gathered into a scratch buffer from the
+ * context and copied back. The caller's arrays are sorted in place and stay the arrays held by columns.
+ */
+final class RowSort {
+
+    private RowSort() {
+    }
+
+    // Sorts the rows by the given key columns, taking the key, permutation and gather buffers from the context.
+    // Returns the strategy taken, as recorded by SortEvent.
+    static String sortRows(double[][] columns, int[] keyOrder, SortContext context, SortTuning tuning, SortEvent event) {
+        int size = columns[0].length;
+        int grain = tuning.grain();
+        if (size > grain && event != null) {
+            event.parallelism = CustomSort.POOL.getParallelism();
+        }
+
+        // The buffers may be longer than the columns; every task below only works on [0, size).
+        long[] keys = context.longs(0, size);
+        int[] order = context.ints(size);
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        SortSupport.run(new RowSortTask(columns, keyOrder, keys, order, 0, size, 0, tuning.insertionSortThreshold, grain, event),
+                size > grain);
+
+        double[] scratch = context.doubles(size);
+        for (int c = 0; c < columns.length; c++) {
+            if (appearsBefore(columns, c)) {
+                // An array listed twice is a single column, which must be permuted only once.
+                continue;
+            }
+            double[] column = columns[c];
+            SortSupport.run(new GatherTask(column, scratch, order, 0, size, grain, true), size > grain);
+            SortSupport.run(new GatherTask(scratch, column, order, 0, size, grain, false), size > grain);
+        }
+        return SortEvent.QUICKSORT;
+    }
+
+    // Whether columns[c] is the same array as one of the columns before it.
+    private static boolean appearsBefore(double[][] columns, int c) {
+        for (int earlier = 0; earlier < c; earlier++) {
+            if (columns[earlier] == columns[c]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    /**
+     * Sorts the rows order[from, to), which are known to be equal in every key column before the given level, by the
+     * key column of that level. The keys of the range are loaded as sortable bits, sorted together with the row
+     * indices, and every run of equal keys is then handed to the next level. Runs are found by splitting the range
+     * at a run boundary close to its middle while it is larger than the grain, so that large runs and groups of small
+     * ones are refined in parallel.
+     */
+    static class RowSortTask extends RecursiveAction {
+        private final double[][] columns;
+        private final int[] keyOrder;
+        private final long[] keys; // Sortable bits of the current level's key of every row of the range.
+        private final int[] order; // Row index at every position of the permutation.
+        private final int from; // First position of the range, inclusive.
+        private final int to; // Last position of the range, exclusive.
+        private final int level; // Index into keyOrder of the key column this range is sorted by.
+        private final int insertionSortThreshold;
+        private final int grain;
+        private final SortEvent event; // The flight recorder event of the sort, or null when the sort is not traced.
+
+        RowSortTask(double[][] columns, int[] keyOrder, long[] keys, int[] order, int from, int to, int level,
+                    int insertionSortThreshold, int grain, SortEvent event) {
+            this.columns = columns;
+            this.keyOrder = keyOrder;
+            this.keys = keys;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.level = level;
+            this.insertionSortThreshold = insertionSortThreshold;
+            this.grain = grain;
+            this.event = event;
+        }
+
+        @Override
+        protected void compute() {
+            double[] column = columns[keyOrder[level]];
+            new LoadKeysTask(column, keys, order, from, to, grain).invoke();
+            int size = to - from;
+            // Ties are broken on the row index, which is what keeps rows with equal keys in their original order.
+            new KeyedSort.KeyedSortTask(keys, order, from, to - 1, CustomSort.maxDepth(size), insertionSortThreshold,
+                    grain, true, event).invoke();
+            if (level + 1 < keyOrder.length) {
+                new RunsTask(from, to).invoke();
+            }
+        }
+
+        // Refines every run of equal keys of the sorted range [runsFrom, runsTo) by the next key column.
+        class RunsTask extends RecursiveAction {
+            private final int runsFrom;
+            private final int runsTo;
+
+            RunsTask(int runsFrom, int runsTo) {
+                this.runsFrom = runsFrom;
+                this.runsTo = runsTo;
+            }
+
+            @Override
+            protected void compute() {
+                if (runsTo - runsFrom > grain) {
+                    // Split after the run that contains the middle, or before it when that run reaches the end.
+                    long middleKey = keys[(runsFrom + runsTo) >>> 1];
+                    int split = SortSupport.upperBound(keys, runsFrom, runsTo, middleKey);
+                    if (split == runsTo) {
+                        split = SortSupport.lowerBound(keys, runsFrom, runsTo, middleKey);
+                    }
+                    if (split == runsFrom) {
+                        // The whole range is a single run.
+                        refine(runsFrom, runsTo);
+                    } else {
+                        invokeAll(new RunsTask(runsFrom, split), new RunsTask(split, runsTo));
+                    }
+                    return;
+                }
+                // The end of every run is found before the run is refined, as refining overwrites its keys.
+                for (int runStart = runsFrom; runStart < runsTo; ) {
+                    int runEnd = runStart + 1;
+                    while (runEnd < runsTo && keys[runEnd] == keys[runStart]) {
+                        runEnd++;
+                    }
+                    if (runEnd - runStart > 1) {
+                        refine(runStart, runEnd);
+                    }
+                    runStart = runEnd;
+                }
+            }
+
+            private void refine(int runStart, int runEnd) {
+                new RowSortTask(columns, keyOrder, keys, order, runStart, runEnd, level + 1, insertionSortThreshold,
+                        grain, event).invoke();
+            }
+        }
+    }
+
+
+
+    // Fills keys[from, to) with the sortable bits of the column value of the row at each position, splitting the range
+    // across the pool until it is no larger than the grain.
+    static class LoadKeysTask extends RecursiveAction {
+        private final double[] column;
+        private final long[] keys;
+        private final int[] order;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        LoadKeysTask(double[] column, long[] keys, int[] order, int from, int to, int grain) {
+            this.column = column;
+            this.keys = keys;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) {
+                    keys[i] = CustomSort.sortableBits(column[order[i]]);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LoadKeysTask(column, keys, order, from, mid, grain),
+                        new LoadKeysTask(column, keys, order, mid, to, grain));
+            }
+        }
+    }
+
+
+
+    // Writes target[i] = source[order[i]] for i in [from, to), or copies source[from, to) over when permute is unset,
+    // splitting the range across the pool like LoadKeysTask.
+    static class GatherTask extends RecursiveAction {
+        private final double[] source;
+        private final double[] target;
+        private final int[] order;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final boolean permute;
+
+        GatherTask(double[] source, double[] target, int[] order, int from, int to, int grain, boolean permute) {
+            this.source = source;
+            this.target = target;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.permute = permute;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new GatherTask(source, target, order, from, mid, grain, permute),
+                        new GatherTask(source, target, order, mid, to, grain, permute));
+            } else if (permute) {
+                for (int i = from; i < to; i++) {
+                    target[i] = source[order[i]];
+                }
+            } else {
+                System.arraycopy(source, from, target, from, to - from);
+            }
+        }
+    }
+}
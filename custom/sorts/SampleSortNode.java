@@ -0,0 +1,297 @@
+package custom.sorts;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The worker side of a DistributedSort, shared by LocalSortWorker and SortWorkerServer, which only differ in how
+ * buckets travel between workers. It holds the partition, draws samples from it, splits it into buckets by the
+ * splitters, collects the buckets sent by the other workers, and sorts and writes the result. Every worker announces
+ * the size of its bucket to every receiver before sending any values, so a receiver allocates one array for all the
+ * buckets it gets and each bucket is copied straight to its sender's offset in it. At the peak, a worker holds its
+ * scattered partition and that array, about twice its share of the data.
+ *
+ * Values are exchanged and stored as raw big-endian doubles, eight bytes each, without any framing beyond the
+ * counts sent ahead of them.
+ */
+final class SampleSortNode {
+
+    // Size of the byte buffer values are encoded through, for sockets and files alike.
+    private static final int IO_CHUNK_BYTES = 1 << 16;
+
+    // How long a worker waits for the buckets of its peers by default. A peer that fails or loses its connection
+    // during the shuffle never sends its bucket, and the wait must end so that the shuffle can report the failure.
+    static final Duration DEFAULT_BUCKET_TIMEOUT = Duration.ofMinutes(10);
+
+    private final Path output;
+    private final Duration bucketTimeout;
+
+    // The partition until the shuffle, then the sorted range this worker ends up with.
+    private double[] data;
+
+    // The partition reordered by bucket after scatter; bucket j is partitioned[bucketOffsets[j], bucketOffsets[j + 1]).
+    private double[] partitioned;
+    private int[] bucketOffsets;
+
+    // The size of the bucket every worker announced it will send, indexed by sender, -1 until announced, and the
+    // number of announcements still missing. Created by the first announcement to arrive, which may come from a faster
+    // peer before this worker has been told to shuffle.
+    private int[] bucketSizes;
+    private CountDownLatch pendingSizes;
+
+    // All received buckets in sender order, allocated once every size is known, with the offset of every sender's
+    // bucket in it, which buckets have been stored, and the number still missing.
+    private double[] received;
+    private int[] receivedOffsets;
+    private boolean[] arrived;
+    private CountDownLatch pendingBuckets;
+
+    // Copies one bucket into the receiving array, from a socket or straight from the sender's partition.
+    @FunctionalInterface
+    interface BucketSource {
+        void copyTo(double[] target, int offset, int length) throws IOException;
+    }
+
+    SampleSortNode(double[] data, Path output, Duration bucketTimeout) {
+        if (bucketTimeout.isNegative() || bucketTimeout.isZero()) {
+            throw new IllegalArgumentException("Bucket timeout must be positive: " + bucketTimeout);
+        }
+        this.data = data;
+        this.output = output;
+        this.bucketTimeout = bucketTimeout;
+    }
+
+    double[] sample(int count) {
+        if (data.length == 0) {
+            return new double[0];
+        }
+        double[] samples = new double[Math.min(count, data.length)];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = data[random.nextInt(data.length)];
+        }
+        return samples;
+    }
+
+    // Reorders the partition by bucket with a counting pass and a placement pass. The bucket of a value is found by
+    // binary search over the splitters, which are few enough to stay in cache, so no per-value bucket array is kept.
+    void scatter(double[] splitters) {
+        int buckets = splitters.length + 1;
+        int[] offsets = new int[buckets + 1];
+        for (double value : data) {
+            offsets[SortSupport.upperBound(splitters, 0, splitters.length, value) + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            offsets[b + 1] += offsets[b];
+        }
+        int[] next = offsets.clone();
+        double[] target = new double[data.length];
+        for (double value : data) {
+            target[next[SortSupport.upperBound(splitters, 0, splitters.length, value)]++] = value;
+        }
+        partitioned = target;
+        bucketOffsets = offsets;
+        data = null;
+    }
+
+    // Number of values in the given bucket, and where they start in partitioned().
+    int bucketSize(int index) {
+        return bucketOffsets[index + 1] - bucketOffsets[index];
+    }
+
+    int bucketStart(int index) {
+        return bucketOffsets[index];
+    }
+
+    double[] partitioned() {
+        return partitioned;
+    }
+
+    // Records the size of the bucket a worker is about to send. Called once per sender, including this worker itself,
+    // before any bucket is stored, so that the buckets can be received straight into one array of the total size.
+    void expect(int from, int workers, int length) {
+        CountDownLatch pending;
+        synchronized (this) {
+            if (bucketSizes == null) {
+                bucketSizes = new int[workers];
+                Arrays.fill(bucketSizes, -1);
+                pendingSizes = new CountDownLatch(workers);
+                pendingBuckets = new CountDownLatch(workers);
+            }
+            if (bucketSizes.length != workers || from < 0 || from >= workers || bucketSizes[from] >= 0 || length < 0) {
+                throw new IllegalStateException("Unexpected bucket of " + length + " values from worker " + from
+                        + " of " + workers);
+            }
+            bucketSizes[from] = length;
+            pending = pendingSizes;
+        }
+        pending.countDown();
+    }
+
+    // Stores the bucket of the given worker, whose size must have been announced with expect. Waits until the sizes of
+    // all workers are known, then lets the source copy the bucket to its place in the receiving array.
+    void accept(int from, BucketSource source) throws IOException {
+        await(sizesLatch(), "No bucket size");
+        double[] target;
+        int offset;
+        int length;
+        synchronized (this) {
+            if (received == null) {
+                long total = 0;
+                receivedOffsets = new int[bucketSizes.length];
+                for (int i = 0; i < bucketSizes.length; i++) {
+                    receivedOffsets[i] = (int) total;
+                    total += bucketSizes[i];
+                    if (total > Integer.MAX_VALUE - 8) {
+                        throw new IllegalStateException("Too many values for one worker: " + total);
+                    }
+                }
+                received = new double[(int) total];
+                arrived = new boolean[bucketSizes.length];
+            }
+            if (arrived[from]) {
+                throw new IllegalStateException("Bucket from worker " + from + " has already been received");
+            }
+            target = received;
+            offset = receivedOffsets[from];
+            length = bucketSizes[from];
+        }
+        source.copyTo(target, offset, length);
+        CountDownLatch pending;
+        synchronized (this) {
+            arrived[from] = true;
+            pending = pendingBuckets;
+        }
+        pending.countDown();
+    }
+
+    // Waits until a bucket from every worker has arrived. This worker's own bucket size must have been announced already.
+    // Fails with an IOException naming the missing workers when the bucket timeout passes first.
+    void awaitBuckets() throws IOException {
+        CountDownLatch pending;
+        synchronized (this) {
+            pending = pendingBuckets;
+        }
+        await(pending, "No bucket");
+        partitioned = null;
+        bucketOffsets = null;
+    }
+
+    private synchronized CountDownLatch sizesLatch() {
+        if (pendingSizes == null) {
+            throw new IllegalStateException("No bucket size has been announced");
+        }
+        return pendingSizes;
+    }
+
+    // Waits for the latch for at most the bucket timeout.
+    private void await(CountDownLatch latch, String missing) throws IOException {
+        try {
+            if (!latch.await(bucketTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new IOException(missing + " from workers " + missingSenders() + " after " + bucketTimeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for buckets", e);
+        }
+    }
+
+    // The workers whose bucket size, or once all sizes are known whose bucket, has not arrived yet.
+    private synchronized List<Integer> missingSenders() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < bucketSizes.length; i++) {
+            if (bucketSizes[i] < 0 || (arrived != null && !arrived[i])) {
+                missing.add(i);
+            }
+        }
+        return missing;
+    }
+
+    // Sorts the received buckets in place with CustomSort.
+    long sortLocal() {
+        double[] values;
+        synchronized (this) {
+            if (received == null) {
+                throw new IllegalStateException("No buckets have been received");
+            }
+            for (int i = 0; i < arrived.length; i++) {
+                if (!arrived[i]) {
+                    throw new IllegalStateException("The bucket of worker " + i + " has not been received");
+                }
+            }
+            values = received;
+            received = null;
+        }
+        CustomSort.sort(values);
+        data = values;
+        return values.length;
+    }
+
+    long write() throws IOException {
+        if (output != null) {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), IO_CHUNK_BYTES)) {
+                writeDoubles(out, data, 0, data.length);
+            }
+        }
+        return data.length;
+    }
+
+    // The sorted range, once sortLocal has run.
+    double[] sorted() {
+        return data;
+    }
+
+    // Reads a partition stored as raw doubles.
+    static double[] readPartition(Path input) throws IOException {
+        long bytes = Files.size(input);
+        if (bytes % 8 != 0 || bytes / 8 > Integer.MAX_VALUE - 8) {
+            throw new IOException("Not a partition of raw doubles: " + input + " has " + bytes + " bytes");
+        }
+        try (InputStream in = Files.newInputStream(input)) {
+            return readDoubles(new DataInputStream(in), (int) (bytes / 8));
+        }
+    }
+
+    static void writeDoubles(OutputStream out, double[] values, int from, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(IO_CHUNK_BYTES);
+        while (length > 0) {
+            int chunk = Math.min(length, IO_CHUNK_BYTES / 8);
+            buffer.asDoubleBuffer().put(values, from, chunk);
+            out.write(buffer.array(), 0, chunk * 8);
+            from += chunk;
+            length -= chunk;
+        }
+    }
+
+    static double[] readDoubles(DataInputStream in, int length) throws IOException {
+        double[] values = new double[length];
+        readDoubles(in, values, 0, length);
+        return values;
+    }
+
+    // Reads length doubles into values[from, from + length).
+    static void readDoubles(DataInputStream in, double[] values, int from, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(IO_CHUNK_BYTES);
+        while (length > 0) {
+            int chunk = Math.min(length, IO_CHUNK_BYTES / 8);
+            in.readFully(buffer.array(), 0, chunk * 8);
+            buffer.asDoubleBuffer().get(values, from, chunk);
+            from += chunk;
+            length -= chunk;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package custom.sorts;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A reusable arena of scratch buffers for the CustomSort modes that need auxiliary memory: the stable merge sort of
+ * sortStable, and the key and permutation arrays of sortBy. Without a context, every such sort allocates its n-sized
+ * buffers afresh, which for tens of millions of elements means humongous allocations and GC churn in a hot loop.
+ * A caller that holds one SortContext per thread or per pipeline and passes it to CustomSort gets those buffers back
+ * on every call. They grow on demand, so once the largest sort size has been seen, repeated sorts allocate nothing.
+ *
+ * A context is not thread-safe and must not be shared by sorts that run at the same time; doing so is detected and
+ * rejected with an IllegalStateException. The buffers are kept until release() is called or the context is dropped.
+ */
+public final class SortContext {
+
+    // Number of independent long buffers a single sort can ask for: the stable merge sort needs its keys and a scratch
+    // copy of them. Every other type is needed at most once per sort.
+    private static final int LONG_SLOTS = 2;
+
+    private double[] doubles;
+    private final long[][] longs = new long[LONG_SLOTS][];
+    private int[] ints;
+    private Object[] objects;
+
+    // The smallest length a buffer is grown to.
+    private int minimumLength;
+
+    // Set while a sort is using the buffers.
+    private final AtomicBoolean inUse = new AtomicBoolean();
+
+    public SortContext() {
+    }
+
+    // Creates a context whose buffers are grown lazily, like the default one, but never below the expected size,
+    // so that the first sorts of similar sizes do not need to grow them step by step.
+    public SortContext(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Expected size must not be negative: " + expectedSize);
+        }
+        this.minimumLength = expectedSize;
+    }
+
+    // Drops every buffer, returning the memory to the garbage collector. The context can still be used afterwards.
+    public void release() {
+        doubles = null;
+        Arrays.fill(longs, null);
+        ints = null;
+        objects = null;
+    }
+
+    // Total size of the buffers currently held, in bytes, not counting array headers.
+    public long footprintBytes() {
+        long bytes = 0;
+        for (long[] buffer : longs) {
+            bytes += buffer == null ? 0 : 8L * buffer.length;
+        }
+        bytes += doubles == null ? 0 : 8L * doubles.length;
+        bytes += ints == null ? 0 : 4L * ints.length;
+        // References are counted at their compressed size.
+        return bytes + (objects == null ? 0 : 4L * objects.length);
+    }
+
+    // Marks the context as used by a sort. Every enter must be paired with an exit in a finally block.
+    void enter() {
+        if (!inUse.compareAndSet(false, true)) {
+            throw new IllegalStateException("SortContext is already in use by another sort");
+        }
+    }
+
+    void exit() {
+        inUse.set(false);
+    }
+
+    // The buffers below hold at least the requested length; only their first length elements are meaningful.
+    // Their content is left over from previous sorts.
+
+    double[] doubles(int length) {
+        if (doubles == null || doubles.length < length) {
+            doubles = new double[grownLength(doubles == null ? 0 : doubles.length, length)];
+        }
+        return doubles;
+    }
+
+    long[] longs(int slot, int length) {
+        long[] buffer = longs[slot];
+        if (buffer == null || buffer.length < length) {
+            buffer = longs[slot] = new long[grownLength(buffer == null ? 0 : buffer.length, length)];
+        }
+        return buffer;
+    }
+
+    int[] ints(int length) {
+        if (ints == null || ints.length < length) {
+            ints = new int[grownLength(ints == null ? 0 : ints.length, length)];
+        }
+        return ints;
+    }
+
+    // Object buffers must be cleared by the sort once it is done with them, so that the context does not keep
+    // the sorted objects reachable.
+    Object[] objects(int length) {
+        if (objects == null || objects.length < length) {
+            objects = new Object[grownLength(objects == null ? 0 : objects.length, length)];
+        }
+        return objects;
+    }
+
+    // Grows by half again when a buffer has to be replaced, so that slowly increasing sizes do not reallocate every time.
+    private int grownLength(int currentLength, int requiredLength) {
+        long grown = Math.max((long) requiredLength, currentLength + ((long) currentLength >> 1));
+        return (int) Math.min(Math.max(grown, minimumLength), Integer.MAX_VALUE - 8);
+    }
+}
@@ -0,0 +1,80 @@
+package custom.sorts;
+
+import java.util.concurrent.ForkJoinPool;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * JDK Flight Recorder event emitted by CustomSort for every sort whose length reaches the configured event threshold.
+ * The event duration is the wall time of the sort, so a recording shows exactly which sorts line up with latency spikes,
+ * GC pauses or CPU saturation. Sorts below the threshold never create an event, which keeps their cost to a single
+ * comparison.
+ */
+@Name("custom.sorts.Sort")
+@Label("CustomSort")
+@Category("CustomSort")
+@Description("A CustomSort invocation above the event threshold")
+class SortEvent extends Event {
+
+    // Strategy names recorded in the event. They mirror the decisions taken by CustomSort.sortArray.
+    static final String SORTED = "sorted shortcut";
+    static final String REVERSED = "reversed";
+    static final String QUICKSORT = "quicksort";
+    static final String HEAP_FALLBACK = "quicksort with heap fallback";
+    static final String MERGE_SORT = "stable merge sort";
+    static final String CANCELLED = "cancelled";
+
+    @Label("Array Length")
+    int length;
+
+    @Label("Strategy")
+    String strategy;
+
+    @Label("Parallelism")
+    @Description("Number of worker threads used, 1 when the sort ran on the caller thread")
+    int parallelism;
+
+    @Label("Steal Count Delta")
+    @Description("Tasks stolen in the ForkJoin pool while the sort was running, including steals by concurrent sorts")
+    long stealCount;
+
+    // Set by any SortTask that hits its depth limit. Written by worker threads, read after the pool has been joined.
+    // Transient like the field below, it only feeds the strategy name and is not recorded on its own.
+    transient volatile boolean heapFallback;
+
+    // Pool steal count sampled at begin(), transient so that it is not written to the recording.
+    private transient long stealCountAtBegin;
+
+    private SortEvent(int length) {
+        this.length = length;
+        this.strategy = QUICKSORT;
+        this.parallelism = 1;
+    }
+
+    // Starts timing a sort of the given length and samples the pool steal count so the delta can be computed on completion.
+    // Returns null when no recording has the event enabled, so that untraced sorts do not carry the event around.
+    static SortEvent begin(int length, ForkJoinPool pool) {
+        SortEvent event = new SortEvent(length);
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.stealCountAtBegin = pool.getStealCount();
+        event.begin();
+        return event;
+    }
+
+    // Records the strategy taken, computes the steal count delta and commits the event if the recording wants it.
+    void end(ForkJoinPool pool, String strategy) {
+        end();
+        if (shouldCommit()) {
+            this.strategy = QUICKSORT.equals(strategy) && heapFallback ? HEAP_FALLBACK : strategy;
+            this.stealCount = pool.getStealCount() - stealCountAtBegin;
+            commit();
+        }
+    }
+}
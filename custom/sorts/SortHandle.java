@@ -0,0 +1,102 @@
+package custom.sorts;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * A sort running in the background on the CustomSort pool, as started by CustomSort.sortCancellable. The sort can be
+ * cancelled at any time and can be given a deadline. Both are checked by every SortTask and CheckSortedTask when it
+ * starts, which is at every fork boundary. Once a stop is requested, the tasks that have not started yet skip their work,
+ * and the ones already running finish their current partition or leaf. Tasks only ever swap elements, so the array is
+ * left as a permutation of its input. It is then only partially sorted.
+ *
+ * The future completes once no task touches the array any more: with the sorted array, with a CancellationException
+ * after cancel(), or with a TimeoutException when the deadline passed first. A sort that finished before the stop
+ * was noticed completes normally. Cancelling the future itself is the same as cancel(): it only requests the stop, and
+ * the future completes with the CancellationException once the sort has stopped, not right away. Either way, the
+ * completed future means that the array is safe to read.
+ */
+public final class SortHandle {
+
+    private final double[] array;
+    private final CompletableFuture<double[]> future = new CompletableFuture<>() {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return SortHandle.this.cancel();
+        }
+    };
+
+    // The deadline as a System.nanoTime() start and a timeout, compared by difference so that nothing overflows.
+    private final long startNanos;
+    private final long timeoutNanos;
+    private final boolean hasDeadline;
+
+    private volatile boolean cancelRequested;
+
+    // Set by the first task that skips its work, so that the outcome reflects whether the stop took effect.
+    private volatile boolean stopped;
+
+    SortHandle(double[] array, long timeoutNanos, boolean hasDeadline) {
+        this.array = array;
+        this.startNanos = System.nanoTime();
+        this.timeoutNanos = timeoutNanos;
+        this.hasDeadline = hasDeadline;
+    }
+
+    // Requests the sort to stop. Returns false if it had already completed.
+    public boolean cancel() {
+        cancelRequested = true;
+        return !future.isDone();
+    }
+
+    // Whether the sort has completed, normally or not, and no longer touches the array.
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    // Whether the sort stopped before the array was fully sorted, because of cancel() or the deadline.
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    // Completes with the sorted array, or exceptionally when the sort was stopped; see the class comment.
+    public CompletableFuture<double[]> future() {
+        return future;
+    }
+
+    // Waits for the sort and returns the sorted array. Throws a CompletionException wrapping a TimeoutException when the
+    // deadline stopped it, and a CancellationException when it was cancelled.
+    public double[] join() {
+        return future.join();
+    }
+
+    // Called by tasks before they start their work. Returns true when the task should skip it.
+    boolean shouldStop() {
+        if (stopped) {
+            return true;
+        }
+        if (cancelRequested || (hasDeadline && System.nanoTime() - startNanos >= timeoutNanos)) {
+            stopped = true;
+            return true;
+        }
+        return false;
+    }
+
+    // Completes the future once the sort has returned.
+    void complete() {
+        if (!stopped) {
+            future.complete(array);
+        } else if (cancelRequested) {
+            future.completeExceptionally(new CancellationException("Sort cancelled"));
+        } else {
+            future.completeExceptionally(new TimeoutException("Sort deadline of " + timeoutNanos + " ns exceeded"));
+        }
+    }
+
+    // Completes the future with a failure of the sort itself.
+    void fail(Throwable failure) {
+        future.completeExceptionally(failure);
+    }
+}
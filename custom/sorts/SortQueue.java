@@ -0,0 +1,153 @@
+package custom.sorts;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * A bounded queue in front of CustomSort.sortAsync for services where many callers sort at the same time. Every large
+ * sort already spreads over the whole pool, so running dozens of them at once only makes them compete for the same cores
+ * and multiplies the memory they touch. A SortQueue runs at most maxRunning sorts at a time and holds up to capacity
+ * more in a FIFO queue. When the queue is full, sortAsync does not block. It returns a future that has already failed
+ * with a RejectedExecutionException, so that an event loop can shed load or answer with a retry hint.
+ * runningCount() and queuedCount() report the current load.
+ *
+ * No thread ever waits on behalf of the queue: the next queued sort is started by the completion of the previous one.
+ * Cancelling a queued future removes its sort before it starts and completes the future right away. Cancelling a
+ * running one requests the stop like SortHandle.cancel(): the future completes with a CancellationException only once
+ * no task touches the array any more, which is then a permutation of its input. Instances are thread-safe.
+ */
+public final class SortQueue {
+
+    private final int maxRunning;
+    private final int capacity;
+
+    // Guarded by this.
+    private final ArrayDeque<Submission> queue = new ArrayDeque<>();
+    private int running;
+
+    // Creates a queue that runs one sort at a time, the default for sorts large enough to occupy the whole pool.
+    public SortQueue(int capacity) {
+        this(1, capacity);
+    }
+
+    public SortQueue(int maxRunning, int capacity) {
+        if (maxRunning <= 0) {
+            throw new IllegalArgumentException("Max running sorts must be positive: " + maxRunning);
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        this.maxRunning = maxRunning;
+        this.capacity = capacity;
+    }
+
+    // Sorts the array on the pool once a slot is free, and completes the returned future with it. When maxRunning sorts
+    // are running and capacity more are queued, the future has already failed with a RejectedExecutionException.
+    public CompletableFuture<double[]> sortAsync(double[] a) {
+        Submission submission = new Submission(a);
+        synchronized (this) {
+            if (running >= maxRunning) {
+                if (queue.size() >= capacity) {
+                    submission.result.completeExceptionally(new RejectedExecutionException(
+                            "Sort queue is full: " + running + " running, " + queue.size() + " queued"));
+                    return submission.result;
+                }
+                queue.add(submission);
+                return submission.result;
+            }
+            running++;
+            submission.handle = new SortHandle(a, Long.MAX_VALUE, false);
+        }
+        start(submission);
+        return submission.result;
+    }
+
+    // Number of sorts currently running on the pool.
+    public synchronized int runningCount() {
+        return running;
+    }
+
+    // Number of sorts waiting for a free slot.
+    public synchronized int queuedCount() {
+        return queue.size();
+    }
+
+    // Whether a sortAsync call made now would be rejected.
+    public synchronized boolean isFull() {
+        return running >= maxRunning && queue.size() >= capacity;
+    }
+
+    // Starts the sort of a submission whose handle has been set, completing its future once the handle completes.
+    private void start(Submission submission) {
+        SortHandle handle = CustomSort.sortCancellable(submission.array, submission.handle);
+        handle.future().whenComplete((result, failure) -> {
+            // The slot is released before the caller's future completes, so that a callback on that future sees the
+            // current counts and can submit the next sort into the slot just freed.
+            try {
+                startNext();
+            } finally {
+                if (failure == null) {
+                    submission.result.complete(result);
+                } else {
+                    submission.result.completeExceptionally(failure);
+                }
+            }
+        });
+    }
+
+    // Hands the slot of a finished sort to the next queued one that has not been cancelled in the meantime.
+    private void startNext() {
+        Submission next;
+        synchronized (this) {
+            do {
+                next = queue.poll();
+            } while (next != null && next.result.isDone());
+            if (next == null) {
+                running--;
+                return;
+            }
+            next.handle = new SortHandle(next.array, Long.MAX_VALUE, false);
+        }
+        start(next);
+    }
+
+    // Cancels a submission. A queued one leaves the queue and its future fails right away, since its array was never
+    // touched. A started one is stopped through its handle, whose completion then completes the future.
+    private boolean cancel(Submission submission) {
+        SortHandle handle;
+        synchronized (this) {
+            if (submission.result.isDone()) {
+                return false;
+            }
+            handle = submission.handle;
+            if (handle == null) {
+                queue.remove(submission);
+            }
+        }
+        if (handle == null) {
+            return submission.result.completeExceptionally(new CancellationException("Queued sort cancelled"));
+        }
+        return handle.cancel();
+    }
+
+    // A sort waiting for or holding a slot.
+    private final class Submission {
+        private final double[] array;
+        private final CompletableFuture<double[]> result = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return SortQueue.this.cancel(Submission.this);
+            }
+        };
+
+        // Set under the queue's lock when the sort is given a slot, so a cancel sees it either queued or started.
+        private SortHandle handle;
+
+        Submission(double[] array) {
+            this.array = array;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package custom.sorts;
+
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Routines shared by the sorts and sorted-array operations of this package: running a task on the pool or the caller
+ * thread, binary searches over sorted doubles and sortable bits, and the split logic of a parallel stable merge.
+ */
+final class SortSupport {
+
+    private SortSupport() {
+    }
+
+    // Runs the task on the pool, or directly on the caller thread when the input is too small to split.
+    static void run(RecursiveAction task, boolean parallel) {
+        if (parallel) {
+            CustomSort.POOL.invoke(task);
+        } else {
+            task.invoke();
+        }
+    }
+
+    // Whether a sorts strictly before b in the Double.compare order. The plain comparisons settle the common case;
+    // Double.compare is only reached for equal values and NaNs.
+    static boolean precedes(double a, double b) {
+        return a < b || (!(a > b) && Double.compare(a, b) < 0);
+    }
+
+    // Index of the first value of array[from, to) that does not sort before the key.
+    static int lowerBound(double[] array, int from, int to, double key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (precedes(array[middle], key)) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    // Index of the first value of array[from, to) that sorts after the key.
+    static int upperBound(double[] array, int from, int to, double key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (precedes(key, array[middle])) {
+                to = middle;
+            } else {
+                from = middle + 1;
+            }
+        }
+        return from;
+    }
+
+    // Index of the first element of bits[from, to) that is not less than the key.
+    static int lowerBound(long[] bits, int from, int to, long key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (bits[middle] < key) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    // Index of the first element of bits[from, to) that is greater than the key.
+    static int upperBound(long[] bits, int from, int to, long key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (bits[middle] <= key) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+
+
+    /**
+     * Stable merge of the sorted runs [leftFrom, leftTo) and [rightFrom, rightTo) into a target starting at out, with
+     * elements of the left run first among equal keys. Merges larger than the grain are split in two independent merges
+     * around the median of the longer run: for a left pivot the right run is cut before its first equal key, for a
+     * right pivot the left run is cut after its last equal key, which keeps the split stable. Subclasses provide the
+     * arrays, the two cuts and the sequential merge.
+     */
+    abstract static class MergeTask extends RecursiveAction {
+        final int leftFrom;
+        final int leftTo;
+        final int rightFrom;
+        final int rightTo;
+        final int out;
+        final int grain;
+
+        MergeTask(int leftFrom, int leftTo, int rightFrom, int rightTo, int out, int grain) {
+            this.leftFrom = leftFrom;
+            this.leftTo = leftTo;
+            this.rightFrom = rightFrom;
+            this.rightTo = rightTo;
+            this.out = out;
+            this.grain = grain;
+        }
+
+        // Index of the first element of the right run that does not sort before the left run's element at pivot.
+        abstract int cutRight(int pivot);
+
+        // Index of the first element of the left run that sorts after the right run's element at pivot.
+        abstract int cutLeft(int pivot);
+
+        // A merge of the given parts of the runs into the same target.
+        abstract MergeTask subtask(int leftFrom, int leftTo, int rightFrom, int rightTo, int out);
+
+        abstract void mergeSequentially();
+
+        @Override
+        protected void compute() {
+            int leftSize = leftTo - leftFrom;
+            int rightSize = rightTo - rightFrom;
+            if (leftSize + rightSize <= grain || leftSize == 0 || rightSize == 0) {
+                mergeSequentially();
+                return;
+            }
+
+            int leftCut;
+            int rightCut;
+            if (leftSize >= rightSize) {
+                leftCut = (leftFrom + leftTo) >>> 1;
+                rightCut = cutRight(leftCut);
+            } else {
+                rightCut = (rightFrom + rightTo) >>> 1;
+                leftCut = cutLeft(rightCut);
+            }
+            int split = out + (leftCut - leftFrom) + (rightCut - rightFrom);
+            invokeAll(subtask(leftFrom, leftCut, rightFrom, rightCut, out),
+                    subtask(leftCut, leftTo, rightCut, rightTo, split));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package custom.sorts;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+
+/**
+ * An immutable set of the size thresholds CustomSort uses to choose between its strategies.
+ * The defaults were tuned on a single machine, and the right crossover points differ between hosts with different
+ * core counts and cache sizes. A tuning can therefore be calibrated on the current host with {@link #calibrate()},
+ * saved to a properties profile, loaded back at class init through the custom.sorts.tuningProfile system property,
+ * or installed programmatically with {@link CustomSort#setTuning(SortTuning)}.
+ */
+public final class SortTuning {
+
+    // Property keys used in a tuning profile file.
+    private static final String INSERTION_SORT_KEY = "insertionSortThreshold";
+    private static final String MIN_PARALLEL_KEY = "minParallelThreshold";
+    private static final String MIN_SEQUENTIAL_SORTED_KEY = "minSequentialSortedThreshold";
+    private static final String PRESORTED_CHECK_KEY = "presortedCheckThreshold";
+    private static final String PARALLEL_SORTED_CHECK_KEY = "parallelSortedCheckThreshold";
+
+    // Fraction by which the parallel path must beat the sequential one before crossover() counts it as a win, so that
+    // timer noise between two nearly equal medians does not decide the cut-off.
+    private static final double CROSSOVER_MARGIN = 0.1;
+
+    // The smallest segment quicksort may be asked to partition, and the smallest segment the presortedness sampling
+    // can inspect. Pivot selection samples five spread elements and the sampling inspects three groups of five.
+    private static final int MIN_QUICKSORT_SEGMENT = 16;
+
+    // The thresholds CustomSort has always been shipped with.
+    static final SortTuning DEFAULTS = new SortTuning(
+            CustomSort.INSERTION_SORT_THRESHOLD,
+            CustomSort.MIN_PARALLEL_THRESHOLD,
+            CustomSort.MIN_SEQUENTIAL_SORTED_THRESHOLD,
+            CustomSort.PRESORTED_CHECK_THRESHOLD,
+            CustomSort.PARALLEL_SORTED_CHECK_THRESHOLD);
+
+    // Segments of this size or smaller are sorted with insertion sort instead of being partitioned.
+    final int insertionSortThreshold;
+
+    // Sorts larger than this are run on the ForkJoin pool, smaller ones on the caller thread.
+    final int minParallelThreshold;
+
+    // Leaf size of the parallel sortedness check, below which a segment is checked sequentially.
+    final int minSequentialSortedThreshold;
+
+    // Segments larger than this are sampled for presortedness before a full check, smaller ones are checked directly.
+    final int presortedCheckThreshold;
+
+    // Segments larger than this that look presorted are checked in parallel, smaller ones sequentially.
+    final int parallelSortedCheckThreshold;
+
+    public SortTuning(int insertionSortThreshold, int minParallelThreshold, int minSequentialSortedThreshold,
+                      int presortedCheckThreshold, int parallelSortedCheckThreshold) {
+        this.insertionSortThreshold = requireAtLeast(INSERTION_SORT_KEY, insertionSortThreshold, MIN_QUICKSORT_SEGMENT);
+        this.minParallelThreshold = requireAtLeast(MIN_PARALLEL_KEY, minParallelThreshold, 0);
+        this.minSequentialSortedThreshold = requireAtLeast(MIN_SEQUENTIAL_SORTED_KEY, minSequentialSortedThreshold, 1);
+        this.presortedCheckThreshold = requireAtLeast(PRESORTED_CHECK_KEY, presortedCheckThreshold, MIN_QUICKSORT_SEGMENT);
+        this.parallelSortedCheckThreshold = requireAtLeast(PARALLEL_SORTED_CHECK_KEY, parallelSortedCheckThreshold, 0);
+    }
+
+    // Returns the thresholds CustomSort uses when no profile has been loaded or set.
+    public static SortTuning defaults() {
+        return DEFAULTS;
+    }
+
+    public int getInsertionSortThreshold() {
+        return insertionSortThreshold;
+    }
+
+    public int getMinParallelThreshold() {
+        return minParallelThreshold;
+    }
+
+    public int getMinSequentialSortedThreshold() {
+        return minSequentialSortedThreshold;
+    }
+
+    public int getPresortedCheckThreshold() {
+        return presortedCheckThreshold;
+    }
+
+    public int getParallelSortedCheckThreshold() {
+        return parallelSortedCheckThreshold;
+    }
+
+    // Smallest amount of work that is split off as a separate pool task. It never drops below the insertion sort
+    // cut-off, which keeps every parallel merge split two strictly smaller merges.
+    int grain() {
+        return Math.max(minParallelThreshold, insertionSortThreshold);
+    }
+
+    private static int requireAtLeast(String name, int value, int min) {
+        if (value < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min + ": " + value);
+        }
+        return value;
+    }
+
+
+
+    // Reads a tuning profile. Keys missing from the file keep their default value.
+    public static SortTuning load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+        try {
+            return new SortTuning(
+                    intProperty(properties, INSERTION_SORT_KEY, DEFAULTS.insertionSortThreshold),
+                    intProperty(properties, MIN_PARALLEL_KEY, DEFAULTS.minParallelThreshold),
+                    intProperty(properties, MIN_SEQUENTIAL_SORTED_KEY, DEFAULTS.minSequentialSortedThreshold),
+                    intProperty(properties, PRESORTED_CHECK_KEY, DEFAULTS.presortedCheckThreshold),
+                    intProperty(properties, PARALLEL_SORTED_CHECK_KEY, DEFAULTS.parallelSortedCheckThreshold));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid tuning profile " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    // Writes this tuning as a profile that load() can read back. The host's core count is recorded for reference only,
+    // and the header notes that calibrate() does not measure the presorted check cut-off.
+    public void save(Path path) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(INSERTION_SORT_KEY, Integer.toString(insertionSortThreshold));
+        properties.setProperty(MIN_PARALLEL_KEY, Integer.toString(minParallelThreshold));
+        properties.setProperty(MIN_SEQUENTIAL_SORTED_KEY, Integer.toString(minSequentialSortedThreshold));
+        properties.setProperty(PRESORTED_CHECK_KEY, Integer.toString(presortedCheckThreshold));
+        properties.setProperty(PARALLEL_SORTED_CHECK_KEY, Integer.toString(parallelSortedCheckThreshold));
+        properties.setProperty("cores", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            properties.store(writer, "CustomSort tuning profile\n"
+                    + PRESORTED_CHECK_KEY + " is not calibrated: calibrate() sets it to " + INSERTION_SORT_KEY);
+        }
+    }
+
+    // Loads the profile named by the custom.sorts.tuningProfile system property, falling back to the defaults
+    // when the property is not set or the profile cannot be read. Used by CustomSort at class init.
+    static SortTuning loadConfigured() {
+        String profile = System.getProperty("custom.sorts.tuningProfile");
+        if (profile == null) {
+            return DEFAULTS;
+        }
+        try {
+            return load(Paths.get(profile));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("CustomSort: could not load tuning profile " + profile + ", using defaults. " + e);
+            return DEFAULTS;
+        }
+    }
+
+
+
+    // Microbenchmarks the crossover points on the current host and returns the resulting tuning.
+    // This takes a few seconds and keeps every core busy, so it is meant to run once per host, not in a service.
+    public static SortTuning calibrate() {
+        Random random = new Random(42);
+        SortTuning tuning = DEFAULTS;
+
+        // Insertion sort cut-off: sequential sorts of random arrays, fastest candidate wins.
+        double[] randomSmall = randomArray(random, 1 << 15);
+        int insertionSortThreshold = fastest(new int[]{16, 24, 32, 48, 64, 100, 128, 192}, randomSmall,
+                t -> new SortTuning(t, Integer.MAX_VALUE, tuning.minSequentialSortedThreshold, t, Integer.MAX_VALUE));
+        // The presorted check cut-off is not measured. Below the insertion cut-off a full sequential check is as cheap as
+        // the sampling, so it is set to the insertion cut-off, as in the defaults.
+        SortTuning withInsertion = new SortTuning(insertionSortThreshold, tuning.minParallelThreshold,
+                tuning.minSequentialSortedThreshold, insertionSortThreshold, tuning.parallelSortedCheckThreshold);
+
+        // Parallel sort cut-off: the smallest size at which the pool beats the caller thread. With the cut-off at
+        // Integer.MAX_VALUE the sort never forks, so the sequential side runs entirely on the calling thread.
+        int minParallelThreshold = crossover(new int[]{1024, 2048, 4096, 8192, 16384, 32768, 65536, 131072}, random, false,
+                parallel -> new SortTuning(withInsertion.insertionSortThreshold, parallel ? 0 : Integer.MAX_VALUE,
+                        withInsertion.minSequentialSortedThreshold, withInsertion.presortedCheckThreshold, Integer.MAX_VALUE));
+
+        // Leaf size of the parallel sortedness check, measured on a large sorted array.
+        double[] sorted = randomArray(random, 1 << 21);
+        Arrays.sort(sorted);
+        int minSequentialSortedThreshold = fastest(new int[]{256, 512, 1024, 2048, 4096, 8192, 16384}, sorted,
+                t -> new SortTuning(withInsertion.insertionSortThreshold, minParallelThreshold, t,
+                        withInsertion.presortedCheckThreshold, 0));
+
+        // Parallel sortedness check cut-off: the smallest sorted size at which the parallel check beats the sequential one.
+        int parallelSortedCheckThreshold = crossover(new int[]{2048, 4096, 8192, 16384, 32768, 65536, 131072, 262144}, random, true,
+                parallel -> new SortTuning(withInsertion.insertionSortThreshold, minParallelThreshold,
+                        minSequentialSortedThreshold, withInsertion.presortedCheckThreshold, parallel ? 0 : Integer.MAX_VALUE));
+
+        return new SortTuning(insertionSortThreshold, minParallelThreshold, minSequentialSortedThreshold,
+                insertionSortThreshold, parallelSortedCheckThreshold);
+    }
+
+    // Builds the tuning to measure for a candidate threshold value.
+    private interface Candidate {
+        SortTuning tuning(int value);
+    }
+
+    // Builds the tuning to measure with the parallel path either forced on or forced off.
+    private interface Toggle {
+        SortTuning tuning(boolean parallel);
+    }
+
+    // Returns the candidate value with the lowest median sort time on copies of the given input.
+    private static int fastest(int[] candidates, double[] input, Candidate candidate) {
+        int best = candidates[0];
+        long bestTime = Long.MAX_VALUE;
+        for (int value : candidates) {
+            long time = measure(input, candidate.tuning(value));
+            if (time < bestTime) {
+                bestTime = time;
+                best = value;
+            }
+        }
+        return best;
+    }
+
+    // Returns the smallest size from which the parallel path is faster than the sequential one by CROSSOVER_MARGIN at
+    // that size and at the next larger one, or one step past the largest size if the parallel path never wins so.
+    // A win at the largest size counts without confirmation.
+    private static int crossover(int[] sizes, Random random, boolean sortedInput, Toggle toggle) {
+        boolean[] wins = new boolean[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            double[] input = randomArray(random, sizes[i]);
+            if (sortedInput) {
+                Arrays.sort(input);
+            }
+            long parallel = measure(input, toggle.tuning(true));
+            long sequential = measure(input, toggle.tuning(false));
+            wins[i] = parallel * (1 + CROSSOVER_MARGIN) < sequential;
+            if (i > 0 && wins[i - 1] && wins[i]) {
+                return sizes[i - 1];
+            }
+        }
+        return wins[sizes.length - 1] ? sizes[sizes.length - 1] : sizes[sizes.length - 1] * 2;
+    }
+
+    // Median wall time in nanoseconds of sorting a fresh copy of the input with the given tuning, after warm-up.
+    private static long measure(double[] input, SortTuning tuning) {
+        final int warmupRuns = 5;
+        final int timedRuns = 9;
+        double[] work = new double[input.length];
+        long[] times = new long[timedRuns];
+        for (int i = 0; i < warmupRuns + timedRuns; i++) {
+            System.arraycopy(input, 0, work, 0, input.length);
+            long start = System.nanoTime();
+            CustomSort.sort(work, tuning);
+            long end = System.nanoTime();
+            if (i >= warmupRuns) {
+                times[i - warmupRuns] = end - start;
+            }
+        }
+        Arrays.sort(times);
+        return times[timedRuns / 2];
+    }
+
+    private static double[] randomArray(Random random, int length) {
+        double[] array = new double[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = random.nextDouble();
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return "SortTuning{" + INSERTION_SORT_KEY + "=" + insertionSortThreshold
+                + ", " + MIN_PARALLEL_KEY + "=" + minParallelThreshold
+                + ", " + MIN_SEQUENTIAL_SORTED_KEY + "=" + minSequentialSortedThreshold
+                + ", " + PRESORTED_CHECK_KEY + "=" + presortedCheckThreshold
+                + ", " + PARALLEL_SORTED_CHECK_KEY + "=" + parallelSortedCheckThreshold + "}";
+    }
+
+    // Calibration mode: java custom.sorts.SortTuning [profile-path]
+    // Calibrates the thresholds on this host and writes them to the given profile (custom-sort-tuning.properties by default).
+    // Point -Dcustom.sorts.tuningProfile at the written file to have CustomSort load it at class init.
+    public static void main(String[] args) throws IOException {
+        Path path = Paths.get(args.length > 0 ? args[0] : "custom-sort-tuning.properties");
+        System.out.println("Calibrating CustomSort thresholds on " + Runtime.getRuntime().availableProcessors() + " cores...");
+        SortTuning tuning = calibrate();
+        tuning.save(path);
+        System.out.println(tuning);
+        System.out.println("Profile written to " + path.toAbsolutePath());
+    }
+}
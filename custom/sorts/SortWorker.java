@@ -0,0 +1,28 @@
+package custom.sorts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * One participant of a DistributedSort. A worker holds one partition of the data and takes part in a single sort,
+ * driven phase by phase by the coordinator. All workers of a sort must be of the same kind: LocalSortWorker for
+ * in-process workers, or RemoteSortWorker for workers running in a SortWorkerServer, typically in their own JVM.
+ */
+public interface SortWorker extends Closeable {
+
+    // Returns about count values drawn at random from the partition, fewer when the partition is smaller.
+    double[] sample(int count) throws IOException;
+
+    // Splits the partition by the splitters into one bucket per worker, sends bucket j to peers.get(j), and returns
+    // once a bucket from every peer has arrived. Bucket j holds the values from splitters[j - 1], inclusive, up to
+    // splitters[j], exclusive, in the Double.compare order. This worker is peers.get(index).
+    void shuffle(int index, double[] splitters, List<? extends SortWorker> peers) throws IOException;
+
+    // Sorts the received buckets with CustomSort and returns the number of values this worker now holds.
+    long sortLocal() throws IOException;
+
+    // Writes the sorted range to the worker's output, if it has one, and returns the number of values written.
+    long write() throws IOException;
+}
@@ -0,0 +1,229 @@
+package custom.sorts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+
+/**
+ * A DistributedSort worker listening on a TCP port, normally run as its own JVM with
+ *
+ *     java custom.sorts.SortWorkerServer <port> <partition file> [<output file>]
+ *
+ * where the files hold raw big-endian doubles. The coordinator drives it through a RemoteSortWorker over one control
+ * connection. During the shuffle, the workers connect to each other directly, announce the size of every bucket and
+ * then stream the buckets, so bucket data never passes through the coordinator. The receiver answers every bucket with OK, or FAILED and a message, so a bucket
+ * that was rejected or cut off fails the sender's shuffle. A worker waits for the buckets of its peers no longer than
+ * the bucket timeout, so a peer that never sends one fails the shuffle too. Every connection is served by its own
+ * daemon thread. The server takes part in a single sort and stops when the coordinator closes it.
+ */
+public final class SortWorkerServer implements Closeable {
+
+    // First byte of every connection.
+    static final int CONTROL_CONNECTION = 1;
+    static final int DATA_CONNECTION = 2;
+
+    // Commands of the control connection, each answered with OK followed by its result or FAILED and a message.
+    // Buckets sent over a data connection are answered the same way.
+    static final int SAMPLE = 1;
+    static final int SHUFFLE = 2;
+    static final int SORT = 3;
+    static final int WRITE = 4;
+    static final int CLOSE = 5;
+    static final int OK = 0;
+    static final int FAILED = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final SampleSortNode node;
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+
+    // Listens on the given port, 0 picking a free one, holding the partition and writing the sorted range to output
+    // unless it is null.
+    public SortWorkerServer(int port, double[] partition, Path output) throws IOException {
+        this(port, partition, output, SampleSortNode.DEFAULT_BUCKET_TIMEOUT);
+    }
+
+    // Like above, giving up on the shuffle when the buckets of the peers have not all arrived within the bucket timeout.
+    public SortWorkerServer(int port, double[] partition, Path output, Duration bucketTimeout) throws IOException {
+        this.node = new SampleSortNode(partition, output, bucketTimeout);
+        this.serverSocket = new ServerSocket(port);
+        this.acceptThread = new Thread(this::acceptConnections, "sort-worker-" + serverSocket.getLocalPort());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Waits until the server has been closed.
+    public void awaitClose() throws InterruptedException {
+        acceptThread.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread handler = new Thread(() -> serve(socket), "sort-worker-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // Closing the server socket ends the loop.
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            int kind = in.readByte();
+            if (kind == DATA_CONNECTION) {
+                serveData(in, out);
+            } else if (kind == CONTROL_CONNECTION) {
+                serveControl(in, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The peer or the coordinator went away. A sender notices through the missing answer to its bucket, the
+            // coordinator through its own connection.
+        }
+    }
+
+    // Receives one bucket from a peer and tells the peer whether it was accepted. The size comes first; the values are
+    // only read once the sizes of all buckets are known, straight into their place in the receiving array.
+    private void serveData(DataInputStream in, DataOutputStream out) throws IOException {
+        int from = in.readInt();
+        int workers = in.readInt();
+        int length = in.readInt();
+        try {
+            node.expect(from, workers, length);
+            node.accept(from, (values, offset, count) -> SampleSortNode.readDoubles(in, values, offset, count));
+            out.writeByte(OK);
+        } catch (IOException | RuntimeException e) {
+            out.writeByte(FAILED);
+            out.writeUTF(String.valueOf(e));
+        }
+        out.flush();
+    }
+
+    private void serveControl(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true) {
+            int command = in.readByte();
+            try {
+                switch (command) {
+                    case SAMPLE: {
+                        double[] samples = node.sample(in.readInt());
+                        out.writeByte(OK);
+                        out.writeInt(samples.length);
+                        SampleSortNode.writeDoubles(out, samples, 0, samples.length);
+                        break;
+                    }
+                    case SHUFFLE: {
+                        int index = in.readInt();
+                        InetSocketAddress[] peers = new InetSocketAddress[in.readInt()];
+                        for (int i = 0; i < peers.length; i++) {
+                            peers[i] = new InetSocketAddress(in.readUTF(), in.readInt());
+                        }
+                        double[] splitters = SampleSortNode.readDoubles(in, in.readInt());
+                        shuffle(index, peers, splitters);
+                        out.writeByte(OK);
+                        break;
+                    }
+                    case SORT:
+                        long size = node.sortLocal();
+                        out.writeByte(OK);
+                        out.writeLong(size);
+                        break;
+                    case WRITE:
+                        long written = node.write();
+                        out.writeByte(OK);
+                        out.writeLong(written);
+                        break;
+                    case CLOSE:
+                        out.writeByte(OK);
+                        out.flush();
+                        close();
+                        return;
+                    default:
+                        throw new IOException("Unknown command " + command);
+                }
+            } catch (IOException | RuntimeException e) {
+                out.writeByte(FAILED);
+                out.writeUTF(String.valueOf(e));
+            }
+            out.flush();
+        }
+    }
+
+    // Opens a data connection to every peer and announces the size of its bucket on all of them first, so that no
+    // receiver waits for a size behind another worker's values. Then streams every bucket, starting with the next peer
+    // so that the workers do not all send to the same one at the same time, keeps its own bucket, and waits for the
+    // buckets of the others.
+    private void shuffle(int index, InetSocketAddress[] peers, double[] splitters) throws IOException {
+        node.scatter(splitters);
+        node.expect(index, peers.length, node.bucketSize(index));
+        Socket[] sockets = new Socket[peers.length];
+        try {
+            DataOutputStream[] outs = new DataOutputStream[peers.length];
+            for (int k = 1; k < peers.length; k++) {
+                int target = (index + k) % peers.length;
+                sockets[target] = new Socket(peers[target].getHostString(), peers[target].getPort());
+                outs[target] = new DataOutputStream(new BufferedOutputStream(sockets[target].getOutputStream(), BUFFER_SIZE));
+                outs[target].writeByte(DATA_CONNECTION);
+                outs[target].writeInt(index);
+                outs[target].writeInt(peers.length);
+                outs[target].writeInt(node.bucketSize(target));
+                outs[target].flush();
+            }
+            for (int k = 1; k < peers.length; k++) {
+                int target = (index + k) % peers.length;
+                SampleSortNode.writeDoubles(outs[target], node.partitioned(), node.bucketStart(target), node.bucketSize(target));
+                outs[target].flush();
+                // A peer that closes the connection without an answer did not take the bucket either.
+                DataInputStream in = new DataInputStream(sockets[target].getInputStream());
+                if (in.readByte() != OK) {
+                    throw new IOException("Worker " + target + " rejected the bucket: " + in.readUTF());
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        double[] partitioned = node.partitioned();
+        int start = node.bucketStart(index);
+        node.accept(index, (values, offset, length) -> System.arraycopy(partitioned, start, values, offset, length));
+        node.awaitBuckets();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: SortWorkerServer <port> <partition file> [<output file>]");
+            System.exit(2);
+        }
+        double[] partition = SampleSortNode.readPartition(Paths.get(args[1]));
+        Path output = args.length == 3 ? Paths.get(args[2]) : null;
+        SortWorkerServer server = new SortWorkerServer(Integer.parseInt(args[0]), partition, output);
+        System.out.println("Sort worker listening on port " + server.port() + " with " + partition.length + " values");
+        server.awaitClose();
+    }
+}
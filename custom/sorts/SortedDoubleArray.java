@@ -0,0 +1,303 @@
+package custom.sorts;
+
+import java.util.Arrays;
+
+
+/**
+ * A growable array of doubles kept in the Double.compare order used by CustomSort.sort, for rolling windows that
+ * receive a batch of new values every tick and must stay sorted.
+ *
+ * Re-sorting the whole window costs O(n log n) per tick over data that is already almost entirely sorted. Instead,
+ * addAll sorts only the new batch with CustomSort and merges it into the backing array, and removeAll drops a batch of
+ * expired values the same way. Values below the smallest batch value are never touched. When the batch is sparse
+ * relative to the window, every batch value is placed with one binary search, and the values between consecutive batch
+ * values are moved with a single System.arraycopy. The comparisons then grow with the batch size, and the remaining
+ * window-sized work is plain memory moves. Dense batches are merged linearly. Large merges are done out of place by
+ * the CustomSort pool into a spare buffer that is kept for the next tick, and the merged values are then copied back
+ * above the untouched prefix.
+ *
+ * Rank and percentile queries are answered directly from the sorted array. Instances are not thread-safe.
+ */
+public class SortedDoubleArray {
+
+    // The sorted values live in values[0, size).
+    private double[] values;
+    private int size;
+
+    // Target of out-of-place parallel merges, holding only the merged tail and kept for reuse.
+    private double[] spare = new double[0];
+
+    // Reused copy of the batch being added or removed, so that the caller's array is never reordered.
+    private double[] batch = new double[0];
+
+    // Average number of window values per batch value above which a batch is placed by binary search and arraycopy.
+    // Below it the runs between batch values are too short to amortize a search and a copy call, and a plain linear
+    // merge over the affected values is faster.
+    private static final int GALLOP_RUN_LENGTH = 64;
+
+    public SortedDoubleArray() {
+        this(16);
+    }
+
+    public SortedDoubleArray(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Initial capacity must not be negative: " + initialCapacity);
+        }
+        this.values = new double[initialCapacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Returns the value at the given position of the sorted order.
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return values[index];
+    }
+
+    // Returns a sorted copy of the values.
+    public double[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Adds all values of the batch and keeps the array sorted. The batch itself is left unchanged.
+    public void addAll(double[] newValues) {
+        addAll(newValues, 0, newValues.length);
+    }
+
+    // Adds newValues[from, to) and keeps the array sorted. The batch itself is left unchanged.
+    public void addAll(double[] newValues, int from, int to) {
+        int count = to - from;
+        if (count <= 0) {
+            return;
+        }
+        double[] sortedBatch = sortedCopy(newValues, from, to);
+        ensureCapacity(size + count);
+
+        // Everything before the first value the batch goes in front of stays where it is.
+        int start = SortSupport.lowerBound(values, 0, size, sortedBatch[0]);
+        int moved = size - start;
+        SortTuning tuning = CustomSort.getTuning();
+        if (moved + count > tuning.minParallelThreshold && CustomSort.POOL.getParallelism() > 1) {
+            mergeInParallel(sortedBatch, count, start, tuning.grain());
+        } else {
+            mergeBackwards(sortedBatch, count, start);
+        }
+        size += count;
+    }
+
+    // Merges the sorted batch into values[start, size) in place, filling the array from its new end backwards.
+    // For a sparse batch, each batch value is positioned by a binary search over the values not yet moved, and the run
+    // of values above it is shifted with one arraycopy. A dense batch is merged element by element.
+    private void mergeBackwards(double[] sortedBatch, int count, int start) {
+        int end = size; // values[start, end) are not yet moved.
+        int out = size + count; // values[out, size + count) are final.
+        if (size - start < (long) count * GALLOP_RUN_LENGTH) {
+            int b = count - 1;
+            while (b >= 0) {
+                // Existing values equal to a batch value stay in front of it.
+                if (end > start && SortSupport.precedes(sortedBatch[b], values[end - 1])) {
+                    values[--out] = values[--end];
+                } else {
+                    values[--out] = sortedBatch[b--];
+                }
+            }
+            return;
+        }
+        for (int b = count - 1; b >= 0; b--) {
+            double value = sortedBatch[b];
+            // Existing values equal to the batch value stay in front of it.
+            int position = SortSupport.upperBound(values, start, end, value);
+            int run = end - position;
+            out -= run;
+            System.arraycopy(values, position, values, out, run);
+            values[--out] = value;
+            end = position;
+        }
+    }
+
+    // Merges the sorted batch with values[start, size) into the front of the spare buffer on the pool, then copies the
+    // merged tail back to values[start, size + count). The values before start are neither read nor copied.
+    private void mergeInParallel(double[] sortedBatch, int count, int start, int grain) {
+        int tail = size - start + count;
+        if (spare.length < tail) {
+            spare = new double[Math.max(tail, spare.length + (spare.length >> 1))];
+        }
+        CustomSort.POOL.invoke(new MergeTask(values, start, size, sortedBatch, 0, count, spare, 0, grain));
+        System.arraycopy(spare, 0, values, start, tail);
+    }
+
+    // Removes one occurrence of every value of the batch that is present, keeping the array sorted.
+    // Values that are not present are ignored. Returns the number of values removed.
+    public int removeAll(double[] expiredValues) {
+        return removeAll(expiredValues, 0, expiredValues.length);
+    }
+
+    // Removes one occurrence of every value of expiredValues[from, to) that is present, keeping the array sorted.
+    // Values that are not present are ignored. Returns the number of values removed.
+    public int removeAll(double[] expiredValues, int from, int to) {
+        int count = to - from;
+        if (count <= 0 || size == 0) {
+            return 0;
+        }
+        double[] sortedBatch = sortedCopy(expiredValues, from, to);
+
+        // Walk the batch in ascending order, so values before the first removal are never touched.
+        int removed = 0;
+        // values[cursor, size) are not yet visited, values[0, out) are final.
+        int cursor = SortSupport.lowerBound(values, 0, size, sortedBatch[0]);
+        int out = cursor;
+        if (size - cursor < (long) count * GALLOP_RUN_LENGTH) {
+            // Dense batch: a linear multiset difference of the remaining values and the batch.
+            int b = 0;
+            while (cursor < size) {
+                double value = values[cursor];
+                while (b < count && SortSupport.precedes(sortedBatch[b], value)) {
+                    b++;
+                }
+                if (b < count && Double.compare(sortedBatch[b], value) == 0) {
+                    b++;
+                    removed++;
+                } else {
+                    values[out++] = value;
+                }
+                cursor++;
+            }
+            size -= removed;
+            return removed;
+        }
+        // Sparse batch: every removal closes the gap left so far with one arraycopy of the run between the previous
+        // removal and this one.
+        for (int b = 0; b < count; b++) {
+            int position = SortSupport.lowerBound(values, cursor, size, sortedBatch[b]);
+            if (position == size) {
+                break;
+            }
+            if (Double.compare(values[position], sortedBatch[b]) != 0) {
+                continue;
+            }
+            int run = position - cursor;
+            System.arraycopy(values, cursor, values, out, run);
+            out += run;
+            cursor = position + 1;
+            removed++;
+        }
+        System.arraycopy(values, cursor, values, out, size - cursor);
+        size -= removed;
+        return removed;
+    }
+
+    // Removes every value that sorts before the given bound in the Double.compare order. Returns the number removed.
+    public int removeBelow(double bound) {
+        int count = SortSupport.lowerBound(values, 0, size, bound);
+        System.arraycopy(values, count, values, 0, size - count);
+        size -= count;
+        return count;
+    }
+
+    // Removes every value that sorts after the given bound in the Double.compare order. Returns the number removed.
+    public int removeAbove(double bound) {
+        int count = size - SortSupport.upperBound(values, 0, size, bound);
+        size -= count;
+        return count;
+    }
+
+    // Returns the number of values that sort before the given value in the Double.compare order.
+    public int rank(double value) {
+        return SortSupport.lowerBound(values, 0, size, value);
+    }
+
+    // Returns the number of values equal to the given value in the Double.compare order.
+    public int count(double value) {
+        return SortSupport.upperBound(values, 0, size, value) - SortSupport.lowerBound(values, 0, size, value);
+    }
+
+    // Returns the nearest-rank percentile: the smallest value such that at least the given percentage of all values
+    // is less than or equal to it. The percentage must be in [0, 100]; 0 returns the minimum, 100 the maximum.
+    public double percentile(double percent) {
+        if (!(percent >= 0.0 && percent <= 100.0)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percent);
+        }
+        if (size == 0) {
+            throw new IllegalStateException("No values");
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * size);
+        return values[Math.max(rank, 1) - 1];
+    }
+
+    // Copies the batch into the reusable batch buffer and sorts it with CustomSort.
+    private double[] sortedCopy(double[] source, int from, int to) {
+        int count = to - from;
+        if (batch.length < count) {
+            batch = new double[count];
+        }
+        System.arraycopy(source, from, batch, 0, count);
+        CustomSort.sortArray(batch, 0, count - 1, CustomSort.getTuning());
+        return batch;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length + (values.length >> 1)));
+        }
+    }
+
+    // Merges the sorted runs left[leftFrom, leftTo) and right[rightFrom, rightTo) into target starting at out, taking
+    // from the left run first among equal values and splitting large merges as SortSupport.MergeTask describes.
+    static class MergeTask extends SortSupport.MergeTask {
+        private final double[] left;
+        private final double[] right;
+        private final double[] target;
+
+        MergeTask(double[] left, int leftFrom, int leftTo, double[] right, int rightFrom, int rightTo,
+                  double[] target, int out, int grain) {
+            super(leftFrom, leftTo, rightFrom, rightTo, out, grain);
+            this.left = left;
+            this.right = right;
+            this.target = target;
+        }
+
+        @Override
+        int cutRight(int pivot) {
+            return SortSupport.lowerBound(right, rightFrom, rightTo, left[pivot]);
+        }
+
+        @Override
+        int cutLeft(int pivot) {
+            return SortSupport.upperBound(left, leftFrom, leftTo, right[pivot]);
+        }
+
+        @Override
+        MergeTask subtask(int leftFrom, int leftTo, int rightFrom, int rightTo, int out) {
+            return new MergeTask(left, leftFrom, leftTo, right, rightFrom, rightTo, target, out, grain);
+        }
+
+        @Override
+        void mergeSequentially() {
+            int i = leftFrom;
+            int j = rightFrom;
+            int k = out;
+            while (i < leftTo && j < rightTo) {
+                if (SortSupport.precedes(right[j], left[i])) {
+                    target[k++] = right[j++];
+                } else {
+                    target[k++] = left[i++];
+                }
+            }
+            System.arraycopy(left, i, target, k, leftTo - i);
+            k += leftTo - i;
+            System.arraycopy(right, j, target, k, rightTo - j);
+        }
+    }
+}
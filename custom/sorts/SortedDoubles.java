@@ -0,0 +1,288 @@
+package custom.sorts;
+
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Operations on arrays that are already sorted in the Double.compare order left by CustomSort.sort: deduplication,
+ * distinct counts, histograms and batch binary search. These are the passes that usually follow a sort, and like the
+ * sort itself they split the work across the CustomSort pool for large inputs. None of them allocates per element;
+ * besides the result, only a small array of per-block counts or a SortContext buffer is used.
+ *
+ * As with Arrays.binarySearch, the input is not checked for sortedness. If it is not sorted, the results are unspecified.
+ * Values are equal when Double.compare says so, which keeps 0.0 and -0.0 apart and treats every NaN as the same value.
+ */
+public final class SortedDoubles {
+
+    private SortedDoubles() {
+    }
+
+    // Returns the number of distinct values of the sorted array.
+    public static int countDistinct(double[] sorted) {
+        int size = sorted.length;
+        if (size == 0) {
+            return 0;
+        }
+        int blockSize = blockSize(size);
+        int[] counts = new int[blocks(size, blockSize)];
+        SortSupport.run(new DistinctTask(sorted, counts, null, 0, counts.length, blockSize), counts.length > 1);
+        int distinct = 0;
+        for (int count : counts) {
+            distinct += count;
+        }
+        return distinct;
+    }
+
+    // Returns the distinct values of the sorted array, in order. The first occurrence of every value is kept.
+    public static double[] unique(double[] sorted) {
+        int size = sorted.length;
+        if (size == 0) {
+            return new double[0];
+        }
+        // First count the distinct values of every block, then turn the counts into the output offset of every block
+        // and let each block copy its distinct values into place independently.
+        int blockSize = blockSize(size);
+        int[] offsets = new int[blocks(size, blockSize)];
+        boolean parallel = offsets.length > 1;
+        SortSupport.run(new DistinctTask(sorted, offsets, null, 0, offsets.length, blockSize), parallel);
+        int distinct = 0;
+        for (int b = 0; b < offsets.length; b++) {
+            int count = offsets[b];
+            offsets[b] = distinct;
+            distinct += count;
+        }
+        double[] result = new double[distinct];
+        SortSupport.run(new DistinctTask(sorted, offsets, result, 0, offsets.length, blockSize), parallel);
+        return result;
+    }
+
+    // Counts the values of the sorted array that fall into each bucket [edges[i], edges[i + 1]), so the result has one
+    // element less than the edges. Edges must be strictly increasing and not NaN. Values are compared numerically here,
+    // so -0.0 counts as zero. Values outside [edges[0], edges[edges.length - 1]) and NaN are not counted.
+    public static int[] histogram(double[] sorted, double[] edges) {
+        if (edges.length < 2) {
+            throw new IllegalArgumentException("At least two edges are needed: " + edges.length);
+        }
+        long[] edgeBits = new long[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            if (i > 0 && !(edges[i - 1] < edges[i])) {
+                throw new IllegalArgumentException("Edges must be strictly increasing: " + edges[i - 1] + " at "
+                        + (i - 1) + " is followed by " + edges[i]);
+            }
+            if (Double.isNaN(edges[i])) {
+                throw new IllegalArgumentException("Edge " + i + " is NaN");
+            }
+            // An edge at zero starts its bucket at -0.0, which precedes 0.0 in the sorted order.
+            edgeBits[i] = CustomSort.sortableBits(edges[i] == 0.0 ? -0.0 : edges[i]);
+        }
+
+        // The edges are sorted, so their positions are found by the same merging lookup as searchAll.
+        int[] positions = new int[edges.length];
+        int grain = CustomSort.getTuning().grain();
+        SortSupport.run(new LookupTask(sorted, edgeBits, null, positions, 0, edges.length, 0, sorted.length, grain, false),
+                edges.length > grain);
+        int[] counts = new int[edges.length - 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = positions[i + 1] - positions[i];
+        }
+        return counts;
+    }
+
+    // Looks up every query in the sorted array. For each query the result holds, at the same position, what
+    // Arrays.binarySearch would return: the index of the value if present, the first such index when it occurs more
+    // than once, and (-(insertion point) - 1) otherwise. The query array is left unchanged.
+    public static int[] searchAll(double[] sorted, double[] queries) {
+        return searchAll(sorted, queries, new SortContext());
+    }
+
+    // Like searchAll, taking the buffers used to sort the queries from the given context instead of allocating them.
+    //
+    // Independent binary searches touch about log2(n) cache lines of the sorted array per query, at random. Instead,
+    // the queries are sorted with their positions and looked up in ascending order: every search gallops forward from
+    // where the previous one ended, so the sorted array is read front to back once, and for many queries per value
+    // range each search costs only a few comparisons. Large batches are split across the pool by query ranges.
+    public static int[] searchAll(double[] sorted, double[] queries, SortContext context) {
+        int count = queries.length;
+        int[] result = new int[count];
+        if (count == 0) {
+            return result;
+        }
+        SortTuning tuning = CustomSort.getTuning();
+        int grain = tuning.grain();
+        boolean parallel = count > grain;
+        context.enter();
+        try {
+            // The buffers may be longer than the queries; only [0, count) is used.
+            long[] queryBits = context.longs(0, count);
+            int[] order = context.ints(count);
+            boolean ascending = true;
+            for (int i = 0; i < count; i++) {
+                queryBits[i] = CustomSort.sortableBits(queries[i]);
+                order[i] = i;
+                ascending &= i == 0 || queryBits[i - 1] <= queryBits[i];
+            }
+            if (!ascending) {
+                SortSupport.run(new KeyedSort.KeyedSortTask(queryBits, order, 0, count - 1, CustomSort.maxDepth(count),
+                        tuning.insertionSortThreshold, grain, false, null), parallel);
+            }
+            SortSupport.run(new LookupTask(sorted, queryBits, order, result, 0, count, 0, sorted.length, grain, true), parallel);
+        } finally {
+            context.exit();
+        }
+        return result;
+    }
+
+    // Size of the blocks the distinct value passes work on: a few blocks per pool thread, but never below the grain.
+    private static int blockSize(int size) {
+        int perTask = size / (CustomSort.POOL.getParallelism() * 4) + 1;
+        return Math.max(CustomSort.getTuning().grain(), perTask);
+    }
+
+    private static int blocks(int size, int blockSize) {
+        return (int) (((long) size + blockSize - 1) / blockSize);
+    }
+
+    // Whether a and b are different values in the Double.compare order. doubleToLongBits maps every NaN to the same
+    // bits, so this is a single long comparison.
+    private static boolean differs(double a, double b) {
+        return Double.doubleToLongBits(a) != Double.doubleToLongBits(b);
+    }
+
+
+
+    // Works on the blocks [blockFrom, blockTo) of the sorted array, splitting them across the pool. Without a target,
+    // stores the number of distinct values of every block in counts; with one, copies the distinct values of every
+    // block to the target starting at the offset counts holds for it. A value is the first of its kind when it differs
+    // from its predecessor, which for the first value of a block lies in the previous block.
+    static class DistinctTask extends RecursiveAction {
+        private final double[] sorted;
+        private final int[] counts; // Distinct values per block, or output offset per block when copying.
+        private final double[] target; // Where the distinct values are copied, or null to only count them.
+        private final int blockFrom; // First block of the range, inclusive.
+        private final int blockTo; // Last block of the range, exclusive.
+        private final int blockSize;
+
+        DistinctTask(double[] sorted, int[] counts, double[] target, int blockFrom, int blockTo, int blockSize) {
+            this.sorted = sorted;
+            this.counts = counts;
+            this.target = target;
+            this.blockFrom = blockFrom;
+            this.blockTo = blockTo;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (blockTo - blockFrom > 1) {
+                int mid = (blockFrom + blockTo) >>> 1;
+                invokeAll(new DistinctTask(sorted, counts, target, blockFrom, mid, blockSize),
+                        new DistinctTask(sorted, counts, target, mid, blockTo, blockSize));
+                return;
+            }
+            int from = blockFrom * blockSize;
+            int to = (int) Math.min((long) from + blockSize, sorted.length);
+            if (target == null) {
+                int distinct = 0;
+                for (int i = from; i < to; i++) {
+                    if (i == 0 || differs(sorted[i - 1], sorted[i])) {
+                        distinct++;
+                    }
+                }
+                counts[blockFrom] = distinct;
+            } else {
+                int out = counts[blockFrom];
+                for (int i = from; i < to; i++) {
+                    if (i == 0 || differs(sorted[i - 1], sorted[i])) {
+                        target[out++] = sorted[i];
+                    }
+                }
+            }
+        }
+    }
+
+
+
+    /**
+     * Finds the first position of the sorted array whose value does not sort before each of the queries
+     * [queryFrom, queryTo), given as ascending sortable bits (see CustomSort.sortableBits). Every such position is known
+     * to lie in [low, high]. Ranges larger than the grain are split at their middle query, whose position is found by
+     * binary search and bounds the positions of both halves. Within a range, every query gallops forward from the
+     * position of the previous one.
+     *
+     * The position of query i is stored at result[order[i]], or at result[i] without an order. With markMissing set,
+     * a value that is not present is stored as (-(position) - 1), as Arrays.binarySearch does.
+     */
+    static class LookupTask extends RecursiveAction {
+        private final double[] sorted;
+        private final long[] queries; // Sortable bits of the queries, ascending.
+        private final int[] order; // Original index of every query, or null when the queries are in their original order.
+        private final int[] result;
+        private final int queryFrom; // First query of the range, inclusive.
+        private final int queryTo; // Last query of the range, exclusive.
+        private final int low; // Lowest position any query of the range can have.
+        private final int high; // Highest position any query of the range can have.
+        private final int grain;
+        private final boolean markMissing;
+
+        LookupTask(double[] sorted, long[] queries, int[] order, int[] result, int queryFrom, int queryTo,
+                   int low, int high, int grain, boolean markMissing) {
+            this.sorted = sorted;
+            this.queries = queries;
+            this.order = order;
+            this.result = result;
+            this.queryFrom = queryFrom;
+            this.queryTo = queryTo;
+            this.low = low;
+            this.high = high;
+            this.grain = grain;
+            this.markMissing = markMissing;
+        }
+
+        @Override
+        protected void compute() {
+            if (queryTo - queryFrom > grain) {
+                int mid = (queryFrom + queryTo) >>> 1;
+                int position = lowerBound(low, high, queries[mid]);
+                invokeAll(new LookupTask(sorted, queries, order, result, queryFrom, mid, low, position, grain, markMissing),
+                        new LookupTask(sorted, queries, order, result, mid, queryTo, position, high, grain, markMissing));
+                return;
+            }
+            int position = low;
+            for (int q = queryFrom; q < queryTo; q++) {
+                long key = queries[q];
+                position = gallop(position, high, key);
+                int found = position;
+                if (markMissing && (position == sorted.length || CustomSort.sortableBits(sorted[position]) != key)) {
+                    found = -position - 1;
+                }
+                result[order == null ? q : order[q]] = found;
+            }
+        }
+
+        // Index of the first value of sorted[from, to) whose bits are not less than the key, found by probing
+        // at exponentially growing distances from the start and then searching the last gap by bisection.
+        private int gallop(int from, int to, long key) {
+            int step = 1;
+            int probe = from;
+            while (probe < to && CustomSort.sortableBits(sorted[probe]) < key) {
+                from = probe + 1;
+                probe = step >= to - from ? to : from + step;
+                step <<= 1;
+            }
+            return lowerBound(from, probe, key);
+        }
+
+        // Index of the first value of sorted[from, to) whose bits are not less than the key.
+        private int lowerBound(int from, int to, long key) {
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                if (CustomSort.sortableBits(sorted[middle]) < key) {
+                    from = middle + 1;
+                } else {
+                    to = middle;
+                }
+            }
+            return from;
+        }
+    }
+}
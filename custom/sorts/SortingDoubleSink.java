@@ -0,0 +1,320 @@
+package custom.sorts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+
+/**
+ * A DoubleConsumer that sorts values while they are still being produced, so that a DoubleStream pipeline does not
+ * have to materialize everything with toArray() before CustomSort.sort can start.
+ *
+ * Values are collected into fixed-size chunks. The first chunk starts small and grows as values arrive, so a sink that
+ * only sees a few values, such as one of many splits of a parallel stream, does not hold a full chunk. Every time a
+ * chunk fills up it is submitted to the CustomSort pool and
+ * sorted there while the producer keeps generating the next one. When the stream is done, the sorted chunks are
+ * combined by a k-way merge: toSortedArray() splits the output into value ranges and merges them in parallel, and
+ * sortedStream() merges lazily on the consuming thread, so that nothing beyond the chunks themselves is held in memory.
+ * toSortedArray() holds the chunks and the result at the same time, about twice the data at its peak, except when
+ * all values fit in one chunk, which is returned as the result without a copy.
+ *
+ * A sink is fed by one thread at a time. With parallel streams, use CustomSort.sorted(DoubleStream) or
+ * DoubleStream.collect with combine, which gives every split its own sink and joins their chunks at the end.
+ */
+public class SortingDoubleSink implements DoubleConsumer {
+
+    // Default number of values per chunk: large enough for each chunk sort to be worth a pool task,
+    // small enough for sorting to start early and keep up with the producer.
+    static final int DEFAULT_CHUNK_SIZE = 1 << 18;
+
+    // Length the first chunk starts at before it grows towards the chunk size.
+    private static final int INITIAL_CHUNK_LENGTH = 64;
+
+    private final int chunkSize;
+    private final SortTuning tuning = CustomSort.getTuning();
+
+    // Chunks handed to the pool, in submission order, and the tasks sorting them.
+    private final List<double[]> chunks = new ArrayList<>();
+    private final List<ForkJoinTask<?>> pending = new ArrayList<>();
+
+    // The chunk currently being filled, and the number of values in it. Allocated by the first value.
+    private double[] current = new double[0];
+    private int count;
+
+    private long size;
+    private boolean finished;
+
+    public SortingDoubleSink() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public SortingDoubleSink(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void accept(double value) {
+        if (count == current.length) {
+            if (count == chunkSize) {
+                submitChunk();
+            }
+            growChunk();
+        }
+        current[count++] = value;
+        size++;
+    }
+
+    // Makes room for more values in the current chunk. The first chunk doubles from a small length up to the chunk
+    // size; once a chunk has been submitted, the stream is known to be large and later chunks start at full size.
+    private void growChunk() {
+        int length = chunks.isEmpty() ? Math.max(INITIAL_CHUNK_LENGTH, current.length * 2) : chunkSize;
+        current = Arrays.copyOf(current, Math.min(length, chunkSize));
+    }
+
+    // Moves the chunks of another sink into this one. Used as the combiner of DoubleStream.collect.
+    public void combine(SortingDoubleSink other) {
+        checkNotFinished();
+        other.checkNotFinished();
+        other.submitChunk();
+        chunks.addAll(other.chunks);
+        pending.addAll(other.pending);
+        size += other.size;
+        other.finished = true;
+    }
+
+    // Number of values accepted so far.
+    public long size() {
+        return size;
+    }
+
+    // Hands the current chunk to the pool for sorting and starts a new one.
+    private void submitChunk() {
+        checkNotFinished();
+        if (count == 0) {
+            return;
+        }
+        double[] chunk = count == current.length ? current : Arrays.copyOf(current, count);
+        SortTuning chunkTuning = tuning;
+        pending.add(CustomSort.POOL.submit(() -> CustomSort.sortArray(chunk, 0, chunk.length - 1, chunkTuning)));
+        chunks.add(chunk);
+        current = new double[0];
+        count = 0;
+    }
+
+    // Waits for every chunk to be sorted. The sink accepts no more values afterwards.
+    private List<double[]> finish() {
+        submitChunk();
+        finished = true;
+        current = null;
+        for (ForkJoinTask<?> task : pending) {
+            task.join();
+        }
+        pending.clear();
+        return chunks;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("The sink has already been consumed");
+        }
+    }
+
+    // Returns all accepted values in the Double.compare order, merging the sorted chunks in parallel. The merge needs
+    // the chunks and the result at once; sortedStream() avoids the second copy.
+    public double[] toSortedArray() {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many values for an array: " + size);
+        }
+        List<double[]> sortedChunks = finish();
+        if (sortedChunks.size() == 1) {
+            // Submitted chunks are trimmed to their values, so a single chunk is the result.
+            double[] result = sortedChunks.get(0);
+            chunks.clear();
+            return result;
+        }
+        double[] result = new double[(int) size];
+        if (!sortedChunks.isEmpty()) {
+            mergeInParallel(sortedChunks.toArray(new double[0][]), result);
+        }
+        chunks.clear();
+        return result;
+    }
+
+    // Returns all accepted values in the Double.compare order as a stream that merges the sorted chunks lazily,
+    // so that no output array is allocated.
+    public DoubleStream sortedStream() {
+        double[][] sortedChunks = finish().toArray(new double[0][]);
+        int[] from = new int[sortedChunks.length];
+        int[] to = new int[sortedChunks.length];
+        for (int c = 0; c < sortedChunks.length; c++) {
+            to[c] = sortedChunks[c].length;
+        }
+        KWayMerger merger = new KWayMerger(sortedChunks, from, to);
+        PrimitiveIterator.OfDouble iterator = new PrimitiveIterator.OfDouble() {
+            @Override
+            public boolean hasNext() {
+                return merger.hasNext();
+            }
+
+            @Override
+            public double nextDouble() {
+                if (!merger.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return merger.next();
+            }
+        };
+        return StreamSupport.doubleStream(Spliterators.spliterator(iterator, size,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    // Splits the output into value ranges, one per task, using splitters sampled from the chunks, and k-way merges
+    // every range into its place of the result in parallel. Equal values always fall into the same range.
+    private void mergeInParallel(double[][] sortedChunks, double[] result) {
+        int parts = Math.max(1, CustomSort.POOL.getParallelism() * 4);
+
+        // Evenly spaced samples of every chunk, sorted, give splitters close to the quantiles of the whole data.
+        int samplesPerChunk = parts;
+        double[] samples = new double[sortedChunks.length * samplesPerChunk];
+        int sampleCount = 0;
+        for (double[] chunk : sortedChunks) {
+            for (int s = 1; s <= samplesPerChunk; s++) {
+                samples[sampleCount++] = chunk[(int) ((long) chunk.length * s / (samplesPerChunk + 1))];
+            }
+        }
+        CustomSort.sortArray(samples, 0, sampleCount - 1, tuning);
+
+        // cuts[p][c] is where range p starts in chunk c; range p ends where range p + 1 starts.
+        int[][] cuts = new int[parts + 1][sortedChunks.length];
+        for (int c = 0; c < sortedChunks.length; c++) {
+            cuts[parts][c] = sortedChunks[c].length;
+        }
+        for (int p = 1; p < parts; p++) {
+            double splitter = samples[(int) ((long) sampleCount * p / parts)];
+            for (int c = 0; c < sortedChunks.length; c++) {
+                cuts[p][c] = SortSupport.lowerBound(sortedChunks[c], 0, sortedChunks[c].length, splitter);
+            }
+        }
+
+        RecursiveAction[] tasks = new RecursiveAction[parts];
+        int out = 0;
+        for (int p = 0; p < parts; p++) {
+            tasks[p] = new MergeRangeTask(sortedChunks, cuts[p], cuts[p + 1], result, out);
+            for (int c = 0; c < sortedChunks.length; c++) {
+                out += cuts[p + 1][c] - cuts[p][c];
+            }
+        }
+        CustomSort.POOL.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+
+
+    // Merges chunk c's range [from[c], to[c]) of every chunk into target starting at out.
+    static class MergeRangeTask extends RecursiveAction {
+        private final double[][] chunks;
+        private final int[] from;
+        private final int[] to;
+        private final double[] target;
+        private final int out;
+
+        MergeRangeTask(double[][] chunks, int[] from, int[] to, double[] target, int out) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.target = target;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            KWayMerger merger = new KWayMerger(chunks, from.clone(), to);
+            int k = out;
+            while (merger.hasNext()) {
+                target[k++] = merger.next();
+            }
+        }
+    }
+
+
+
+    /**
+     * Merges sorted ranges of several arrays with a binary min-heap of range indices, keyed by the next value of each
+     * range, in O(log k) comparisons per value for k ranges. Ranges are consumed by advancing from[c].
+     */
+    static class KWayMerger {
+        private final double[][] arrays;
+        private final int[] from;
+        private final int[] to;
+        private final int[] heap; // Indices of the non-empty ranges, ordered by their next value.
+        private int heapSize;
+
+        KWayMerger(double[][] arrays, int[] from, int[] to) {
+            this.arrays = arrays;
+            this.from = from;
+            this.to = to;
+            this.heap = new int[arrays.length];
+            for (int c = 0; c < arrays.length; c++) {
+                if (from[c] < to[c]) {
+                    heap[heapSize++] = c;
+                }
+            }
+            for (int i = (heapSize >>> 1) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        boolean hasNext() {
+            return heapSize > 0;
+        }
+
+        double next() {
+            int c = heap[0];
+            double value = arrays[c][from[c]++];
+            if (from[c] == to[c]) {
+                heap[0] = heap[--heapSize];
+            }
+            if (heapSize > 0) {
+                siftDown(0);
+            }
+            return value;
+        }
+
+        // Next value of the range at heap position i.
+        private double head(int i) {
+            int c = heap[i];
+            return arrays[c][from[c]];
+        }
+
+        private void siftDown(int i) {
+            int c = heap[i];
+            double value = arrays[c][from[c]];
+            for (int child; (child = (i << 1) + 1) < heapSize; i = child) {
+                if (child + 1 < heapSize && SortSupport.precedes(head(child + 1), head(child))) {
+                    child++;
+                }
+                if (!SortSupport.precedes(head(child), value)) {
+                    break;
+                }
+                heap[i] = heap[child];
+            }
+            heap[i] = c;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package custom.sorts;
+
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Stable sort of double keys with int payloads (for example row IDs) behind CustomSort.sortStable.
+ * The quicksort of SortTask is not stable, so equal keys come out in an order that depends on how the ForkJoin pool
+ * scheduled the work. This mode is a parallel merge sort instead: the two halves of every range are sorted
+ * independently and merged with ties always taken from the left half, so the output is uniquely defined by the input
+ * and identical for any number of threads.
+ *
+ * The keys are ordered in the Double.compare order used by CustomSort.sort, NaN and -0.0 included. To keep every
+ * comparison a single long comparison, the keys are encoded as sortable long bits (see CustomSort.sortableBits) for the
+ * duration of the merge sort and decoded afterwards; NaN keys come back as the canonical NaN. The merge passes
+ * ping-pong between the encoded keys and one scratch buffer, so no level of the merge copies data back. All three
+ * buffers come from a SortContext, so repeated sorts with the same context allocate nothing.
+ * Presorted input is detected with the same shortcuts as CustomSort.sort before anything is allocated.
+ */
+final class StableSort {
+
+    private StableSort() {
+    }
+
+    // Stably sorts the keys and applies the same permutation to the payload, taking the scratch buffers from the context.
+    // Returns the strategy taken, as recorded by SortEvent.
+    static String sort(double[] keys, int[] payload, SortContext context, SortTuning tuning, SortEvent event) {
+        int size = keys.length;
+        int presorted = CustomSort.checkPresorted(keys, 0, size - 1, tuning, event);
+        if (presorted == CustomSort.PRESORTED_ASCENDING) {
+            return SortEvent.SORTED;
+        }
+        if (presorted == CustomSort.PRESORTED_DESCENDING) {
+            reverseStably(keys, payload);
+            return SortEvent.REVERSED;
+        }
+
+        // Ranges up to the grain are sorted and merged on one thread.
+        int grain = tuning.grain();
+        boolean parallel = size > grain;
+        if (parallel && event != null) {
+            event.parallelism = CustomSort.POOL.getParallelism();
+        }
+
+        // The buffers may be longer than the keys; every task below only works on [0, size).
+        long[] bits = context.longs(0, size);
+        long[] scratchBits = context.longs(1, size);
+        int[] scratchPayload = context.ints(size);
+
+        SortSupport.run(new CodecTask(keys, bits, 0, size, grain, true), parallel);
+        SortSupport.run(new MergeSortTask(bits, payload, scratchBits, scratchPayload, 0, size, false,
+                tuning.insertionSortThreshold, grain), parallel);
+        SortSupport.run(new CodecTask(keys, bits, 0, size, grain, false), parallel);
+        return SortEvent.MERGE_SORT;
+    }
+
+    // Reverses a segment that is in descending order while keeping equal keys in their original relative order:
+    // the whole array is reversed, then every run of equal keys, which the first reversal flipped, is reversed back.
+    private static void reverseStably(double[] keys, int[] payload) {
+        reverse(keys, payload, 0, keys.length - 1);
+        for (int runStart = 0, i = 1; i <= keys.length; i++) {
+            if (i == keys.length || Double.compare(keys[runStart], keys[i]) != 0) {
+                reverse(keys, payload, runStart, i - 1);
+                runStart = i;
+            }
+        }
+    }
+
+    private static void reverse(double[] keys, int[] payload, int left, int right) {
+        while (left < right) {
+            double key = keys[left];
+            keys[left] = keys[right];
+            keys[right] = key;
+            int value = payload[left];
+            payload[left++] = payload[right];
+            payload[right--] = value;
+        }
+    }
+
+
+
+    // Encodes keys[from, to) into sortable bits, or decodes them back, splitting the range across the pool
+    // until it is no larger than the grain.
+    static class CodecTask extends RecursiveAction {
+        private final double[] keys;
+        private final long[] bits;
+        private final int from; // First index of the range, inclusive.
+        private final int to; // Last index of the range, exclusive.
+        private final int grain;
+        private final boolean encode;
+
+        CodecTask(double[] keys, long[] bits, int from, int to, int grain, boolean encode) {
+            this.keys = keys;
+            this.bits = bits;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.encode = encode;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                if (encode) {
+                    for (int i = from; i < to; i++) {
+                        bits[i] = CustomSort.sortableBits(keys[i]);
+                    }
+                } else {
+                    for (int i = from; i < to; i++) {
+                        keys[i] = CustomSort.fromSortableBits(bits[i]);
+                    }
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CodecTask(keys, bits, from, mid, grain, encode),
+                        new CodecTask(keys, bits, mid, to, grain, encode));
+            }
+        }
+    }
+
+
+
+    /**
+     * Stable merge sort of [from, to) of the encoded keys and payload. With intoScratch unset the sorted range ends up
+     * in the source arrays, otherwise in the scratch arrays. A range is sorted by sorting both halves into the other
+     * pair of arrays and merging them back, so the two pairs alternate between levels and nothing is copied back.
+     * Halves larger than the grain are sorted in parallel; smaller ones recurse on the current thread.
+     */
+    static class MergeSortTask extends RecursiveAction {
+        private final long[] bits;
+        private final int[] payload;
+        private final long[] scratchBits;
+        private final int[] scratchPayload;
+        private final int from; // First index of the range, inclusive.
+        private final int to; // Last index of the range, exclusive.
+        private final boolean intoScratch;
+        private final int insertionSortThreshold;
+        private final int grain;
+
+        MergeSortTask(long[] bits, int[] payload, long[] scratchBits, int[] scratchPayload, int from, int to,
+                      boolean intoScratch, int insertionSortThreshold, int grain) {
+            this.bits = bits;
+            this.payload = payload;
+            this.scratchBits = scratchBits;
+            this.scratchPayload = scratchPayload;
+            this.from = from;
+            this.to = to;
+            this.intoScratch = intoScratch;
+            this.insertionSortThreshold = insertionSortThreshold;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            int size = to - from;
+
+            // Small ranges are sorted in place with insertion sort, which is stable, and copied over if needed.
+            if (size <= insertionSortThreshold) {
+                insertionSort(bits, payload, from, to);
+                if (intoScratch) {
+                    System.arraycopy(bits, from, scratchBits, from, size);
+                    System.arraycopy(payload, from, scratchPayload, from, size);
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            MergeSortTask leftTask = new MergeSortTask(bits, payload, scratchBits, scratchPayload, from, mid,
+                    !intoScratch, insertionSortThreshold, grain);
+            MergeSortTask rightTask = new MergeSortTask(bits, payload, scratchBits, scratchPayload, mid, to,
+                    !intoScratch, insertionSortThreshold, grain);
+            if (size > grain) {
+                invokeAll(leftTask, rightTask);
+            } else {
+                leftTask.compute();
+                rightTask.compute();
+            }
+
+            // The halves now sit in the other pair of arrays, merge them into this range's target.
+            MergeTask mergeTask = intoScratch
+                    ? new MergeTask(bits, payload, scratchBits, scratchPayload, from, mid, mid, to, from, grain)
+                    : new MergeTask(scratchBits, scratchPayload, bits, payload, from, mid, mid, to, from, grain);
+            mergeTask.compute();
+        }
+
+        private static void insertionSort(long[] bits, int[] payload, int from, int to) {
+            for (int i = from + 1; i < to; i++) {
+                long key = bits[i];
+                int value = payload[i];
+                int j = i;
+                // Strictly greater keys only, so that equal keys keep their order.
+                while (j > from && bits[j - 1] > key) {
+                    bits[j] = bits[j - 1];
+                    payload[j] = payload[j - 1];
+                    j--;
+                }
+                bits[j] = key;
+                payload[j] = value;
+            }
+        }
+    }
+
+
+
+    // Stably merges the sorted runs [leftFrom, leftTo) and [rightFrom, rightTo) of the source arrays into the target
+    // arrays, splitting large merges as SortSupport.MergeTask describes.
+    static class MergeTask extends SortSupport.MergeTask {
+        private final long[] sourceBits;
+        private final int[] sourcePayload;
+        private final long[] targetBits;
+        private final int[] targetPayload;
+
+        MergeTask(long[] sourceBits, int[] sourcePayload, long[] targetBits, int[] targetPayload,
+                  int leftFrom, int leftTo, int rightFrom, int rightTo, int out, int grain) {
+            super(leftFrom, leftTo, rightFrom, rightTo, out, grain);
+            this.sourceBits = sourceBits;
+            this.sourcePayload = sourcePayload;
+            this.targetBits = targetBits;
+            this.targetPayload = targetPayload;
+        }
+
+        @Override
+        int cutRight(int pivot) {
+            return SortSupport.lowerBound(sourceBits, rightFrom, rightTo, sourceBits[pivot]);
+        }
+
+        @Override
+        int cutLeft(int pivot) {
+            return SortSupport.upperBound(sourceBits, leftFrom, leftTo, sourceBits[pivot]);
+        }
+
+        @Override
+        MergeTask subtask(int leftFrom, int leftTo, int rightFrom, int rightTo, int out) {
+            return new MergeTask(sourceBits, sourcePayload, targetBits, targetPayload,
+                    leftFrom, leftTo, rightFrom, rightTo, out, grain);
+        }
+
+        @Override
+        void mergeSequentially() {
+            int i = leftFrom;
+            int j = rightFrom;
+            int k = out;
+            while (i < leftTo && j < rightTo) {
+                // Take from the right run only when strictly smaller, which is what makes the merge stable.
+                if (sourceBits[j] < sourceBits[i]) {
+                    targetBits[k] = sourceBits[j];
+                    targetPayload[k++] = sourcePayload[j++];
+                } else {
+                    targetBits[k] = sourceBits[i];
+                    targetPayload[k++] = sourcePayload[i++];
+                }
+            }
+            System.arraycopy(sourceBits, i, targetBits, k, leftTo - i);
+            System.arraycopy(sourcePayload, i, targetPayload, k, leftTo - i);
+            k += leftTo - i;
+            System.arraycopy(sourceBits, j, targetBits, k, rightTo - j);
+            System.arraycopy(sourcePayload, j, targetPayload, k, rightTo - j);
+        }
+    }
+}